@@ -2,6 +2,7 @@ package com.chedifier.ladder.base;
 
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.chedifier.ladder.base.ObjectPool.IConstructor;
 
@@ -42,6 +43,21 @@ public class JobScheduler {
 		return true;
 	}
 	
+	/**
+	 * run job after delay milliseconds.
+	 * @param j
+	 * @param delay
+	 * @return
+	 */
+	public static synchronized boolean schedule(Job j,long delay) {
+		if(!sInited) {
+			return false;
+		}
+		sExecutor.schedule(sWJobPool.obtain(j), delay, TimeUnit.MILLISECONDS);
+		incTask();
+		return true;
+	}
+	
 	public static void terminate() {
 		if(sExecutor != null) {
 			try {				
@@ -1,5 +1,7 @@
 package com.chedifier.ladder.base;
 
+import java.nio.ByteBuffer;
+
 public class StringUtils {
 	
 	public static boolean isEmpty(String s) {
@@ -45,6 +47,27 @@ public class StringUtils {
 		return "";
 	}
 	
+	public static String toRawString(ByteBuffer data,int length) {
+		return toRawString(data,0,length);
+	}
+	
+	/**
+	 * same as {@link #toRawString(byte[], int, int)}, works on direct buffer as well.
+	 * position of data is not touched.
+	 */
+	public static String toRawString(ByteBuffer data,int offset,int length) {
+		if(data != null && ArrayUtils.isValidateRange(data.capacity(), offset, length)) {
+			StringBuilder sb = new StringBuilder(length << 1);
+			for(int i=0;i<length;i++) {
+				sb.append(String.valueOf(data.get(offset+i) & 0xFF) + "|");
+			}
+			
+			return sb.toString();
+		}
+		
+		return "";
+	}
+	
 	public static String toString(byte[] data) {
 		if(data != null) {
 			return toString(data,data.length);
@@ -0,0 +1,201 @@
+package com.chedifier.ladder.base;
+
+/**
+ * hashed timing wheel, schedule and cancel are O(1).
+ * not thread safe, every operation must happen on the thread who drives {@link #advance(long)},
+ * usually the reactor thread owning the timeouts.
+ */
+public class TimingWheel {
+	private static final String TAG = "TimingWheel";
+
+	private final long mTickDuration;
+	private final int mMask;
+	private final Timeout[] mSlots;
+	private final long mStartTime;
+	private long mCurrentTick = 0L;
+	private int mSize = 0;
+
+	/**
+	 *
+	 * @param tickDuration milliseconds per tick, the precision of timeouts.
+	 * @param ticksPerWheel slots of the wheel, will be rounded up to power of 2.
+	 */
+	public TimingWheel(long tickDuration,int ticksPerWheel) {
+		if(tickDuration <= 0) {
+			tickDuration = 1;
+		}
+
+		int n = 1;
+		while(n < ticksPerWheel) {
+			n <<= 1;
+		}
+
+		mTickDuration = tickDuration;
+		mMask = n - 1;
+		mSlots = new Timeout[n];
+		mStartTime = now();
+	}
+
+	/**
+	 * monotonic clock in milliseconds.
+	 * @return
+	 */
+	public static long now() {
+		return System.nanoTime()/1000000L;
+	}
+
+	public long getTickDuration() {
+		return mTickDuration;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * schedule timeout to expire after delay, a pending timeout will be rescheduled.
+	 * @param timeout
+	 * @param delay milliseconds
+	 */
+	public void schedule(Timeout timeout,long delay) {
+		if(timeout == null) {
+			return;
+		}
+
+		cancel(timeout);
+
+		if(delay < 0) {
+			delay = 0;
+		}
+
+		long deadlineTick = (now() - mStartTime + delay + mTickDuration - 1)/mTickDuration;
+		if(deadlineTick <= mCurrentTick) {
+			deadlineTick = mCurrentTick + 1;
+		}
+
+		timeout.mRounds = (deadlineTick - mCurrentTick - 1) >> Integer.bitCount(mMask);
+		timeout.mSlot = (int)(deadlineTick & mMask);
+		timeout.mWheel = this;
+
+		Timeout head = mSlots[timeout.mSlot];
+		timeout.mPrev = null;
+		timeout.mNext = head;
+		if(head != null) {
+			head.mPrev = timeout;
+		}
+		mSlots[timeout.mSlot] = timeout;
+		++mSize;
+	}
+
+	public void cancel(Timeout timeout) {
+		if(timeout == null) {
+			return;
+		}
+
+		timeout.mExpiring = false;
+		if(timeout.mWheel != this || timeout.mSlot < 0) {
+			return;
+		}
+
+		if(timeout.mPrev != null) {
+			timeout.mPrev.mNext = timeout.mNext;
+		}else {
+			mSlots[timeout.mSlot] = timeout.mNext;
+		}
+
+		if(timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout.mPrev;
+		}
+
+		timeout.mPrev = timeout.mNext = null;
+		timeout.mSlot = -1;
+		--mSize;
+	}
+
+	/**
+	 * expire all timeouts whose deadline passed.
+	 * @param now current time from {@link #now()}
+	 * @return number of timeouts expired
+	 */
+	public int advance(long now) {
+		long targetTick = (now - mStartTime)/mTickDuration;
+		int expired = 0;
+		while(mCurrentTick < targetTick) {
+			++mCurrentTick;
+			if(mSize <= 0) {
+				mCurrentTick = targetTick;
+				break;
+			}
+
+			expired += expireSlot((int)(mCurrentTick & mMask));
+		}
+
+		return expired;
+	}
+
+	private int expireSlot(int slot) {
+		Timeout expiring = null;
+		Timeout t = mSlots[slot];
+		while(t != null) {
+			Timeout next = t.mNext;
+			if(t.mRounds <= 0) {
+				cancel(t);
+				t.mExpiring = true;
+				t.mNextExpiring = expiring;
+				expiring = t;
+			}else {
+				--t.mRounds;
+			}
+			t = next;
+		}
+
+		int n = 0;
+		while(expiring != null) {
+			Timeout next = expiring.mNextExpiring;
+			expiring.mNextExpiring = null;
+
+			//may be canceled or rescheduled by the former expired task.
+			if(expiring.mExpiring) {
+				expiring.mExpiring = false;
+				try {
+					expiring.mTask.onTimeout(expiring);
+				}catch(Throwable e) {
+					Log.e(TAG, "run timeout task failed.");
+					ExceptionHandler.handleException(e);
+				}
+				++n;
+			}
+
+			expiring = next;
+		}
+
+		return n;
+	}
+
+	public static final class Timeout{
+		private final ITimeoutTask mTask;
+		private TimingWheel mWheel;
+		private Timeout mPrev;
+		private Timeout mNext;
+		private Timeout mNextExpiring;
+		private int mSlot = -1;
+		private long mRounds;
+		private boolean mExpiring;
+
+		public Timeout(ITimeoutTask task) {
+			mTask = task;
+		}
+
+		public boolean isPending() {
+			return mSlot >= 0 || mExpiring;
+		}
+	}
+
+	public interface ITimeoutTask{
+		void onTimeout(Timeout timeout);
+	}
+}
@@ -0,0 +1,238 @@
+package com.chedifier.ladder.cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import com.chedifier.ladder.memory.RingBuffer;
+
+/**
+ * sends parcels of a {@link Cipher} without packing them.
+ * parcels are coded unpacked into the ring, block headers are kept aside and only put on wire,
+ * between the payload slices of the ring, by one gathering write. the wire is the same as of {@link Cipher#encrypt(ByteBuffer, int, int, ByteBuffer)}.
+ * other bytes put into the ring go out as they are, they must be told by {@link #onRaw(int)}.
+ * a header is kept only ahead of payload, the 0 length after a full last block is put into the ring as raw,
+ * so ring empty is all sent. not thread safe.
+ */
+public class BlockWriter {
+
+	//segments of one write, a full ring of 32 blocks takes 64.
+	private static final int MAX_SEGMENTS = 128;
+
+	private final Cipher mCipher;
+	private final RingBuffer mRing;
+
+	//lengths in ring in order, a parcel as positive, raw bytes as negative.
+	private int[] mEntries = new int[16];
+	private int mHead = 0;
+	private int mCount = 0;
+
+	//of the head entry, payload bytes sent and header bytes sent of the block it stands at.
+	private int mSent = 0;
+	private int mHeaderSent = 0;
+
+	private final byte[] mHeaders = new byte[MAX_SEGMENTS<<1];
+	private final ByteBuffer[] mSegments = new ByteBuffer[MAX_SEGMENTS];
+	private final ByteBuffer[] mHeaderViews = new ByteBuffer[MAX_SEGMENTS];
+	private final ByteBuffer[] mPayloadViews = new ByteBuffer[MAX_SEGMENTS];
+	//generation of ring the payload views are of.
+	private int mViewGeneration = -1;
+
+	/**
+	 * @param ring bytes already in it are taken as raw.
+	 */
+	public BlockWriter(Cipher cipher,RingBuffer ring) {
+		mCipher = cipher;
+		mRing = ring;
+		ByteBuffer headers = ByteBuffer.wrap(mHeaders);
+		for(int i=0;i<MAX_SEGMENTS;i++) {
+			mHeaderViews[i] = headers.duplicate();
+		}
+		onRaw(ring.size());
+	}
+
+	public RingBuffer getRing() {
+		return mRing;
+	}
+
+	/**
+	 * @return room needed in ring to encrypt len.
+	 */
+	public int encryptLen(int len) {
+		return mCipher.encodeLen(len) + 2;
+	}
+
+	/**
+	 * encrypt one parcel of origin into the ring.
+	 * @return the len of data be encrypted, or {@link Cipher#ERR_NOT_ENOUGH_SPACE}.
+	 */
+	public int encrypt(ByteBuffer origin,int offset,int len) {
+		int need = encryptLen(len);
+		ByteBuffer out = mRing.writeView(need);
+		if(out.remaining() < need) {
+			return Cipher.ERR_NOT_ENOUGH_SPACE;
+		}
+
+		int p = out.position();
+		int el = mCipher.encode(origin, offset, len, out);
+		if(el <= 0) {
+			return el;
+		}
+
+		int n = out.position() - p;
+		add(n);
+		if(n%Cipher.BLOCK_SIZE == 0) {
+			out.put((byte)0);
+			out.put((byte)0);
+			add(-2);
+		}
+		mRing.commitWrite(out.position() - p);
+
+		return el;
+	}
+
+	/**
+	 * len bytes have been put into the ring by others.
+	 */
+	public void onRaw(int len) {
+		if(len > 0) {
+			add(-len);
+		}
+	}
+
+	/**
+	 * gathering write of the ring with headers in place, what is written is consumed from ring.
+	 * @return bytes written on wire
+	 */
+	public int writeTo(GatheringByteChannel channel) throws IOException {
+		if(mViewGeneration != mRing.generation()) {
+			//the ring has moved its buffer.
+			for(int i=0;i<MAX_SEGMENTS;i++) {
+				mPayloadViews[i] = mRing.newView();
+			}
+			mViewGeneration = mRing.generation();
+		}
+
+		int n = 0, off = 0;
+		for(int i=0;i<mCount && n < MAX_SEGMENTS - 2;i++) {
+			int e = mEntries[(mHead + i)%mEntries.length];
+			if(e < 0) {
+				int len = -e - (i == 0?mSent:0);
+				n = payload(n, off, len);
+				off += len;
+				continue;
+			}
+
+			int p = i == 0?mSent:0;
+			int h = i == 0?mHeaderSent:0;
+			while(p < e && n < MAX_SEGMENTS - 2) {
+				int b = Math.min(p - p%Cipher.BLOCK_SIZE + Cipher.BLOCK_SIZE, e) - p;
+				if(p%Cipher.BLOCK_SIZE == 0 && h < 2) {
+					n = header(n, b, h);
+				}
+				h = 0;
+				n = payload(n, off, b);
+				off += b;
+				p += b;
+			}
+		}
+
+		if(n <= 0) {
+			return 0;
+		}
+
+		int w = (int)channel.write(mSegments, 0, n);
+		consume(w);
+		return w;
+	}
+
+	private int header(int n,int block,int sent) {
+		ByteBuffer v = mHeaderViews[n];
+		mHeaders[n<<1] = (byte)((block>>8)&0xFF);
+		mHeaders[(n<<1)+1] = (byte)(block&0xFF);
+		v.limit((n<<1) + 2);
+		v.position((n<<1) + sent);
+		mSegments[n] = v;
+		return n + 1;
+	}
+
+	private int payload(int n,int off,int len) {
+		while(len > 0 && n < MAX_SEGMENTS) {
+			ByteBuffer v = mPayloadViews[n];
+			int l = mRing.slice(off, len, v);
+			if(l <= 0) {
+				break;
+			}
+			mSegments[n++] = v;
+			off += l;
+			len -= l;
+		}
+
+		return n;
+	}
+
+	private void consume(int w) {
+		while(w > 0 && mCount > 0) {
+			int e = mEntries[mHead];
+			int l;
+			if(e < 0) {
+				l = Math.min(-e - mSent, w);
+				mRing.skip(l);
+				mSent += l;
+				w -= l;
+				if(mSent >= -e) {
+					pop();
+				}
+				continue;
+			}
+
+			if(mSent%Cipher.BLOCK_SIZE == 0 && mHeaderSent < 2) {
+				l = Math.min(2 - mHeaderSent, w);
+				mHeaderSent += l;
+				w -= l;
+				continue;
+			}
+
+			int b = Math.min(mSent - mSent%Cipher.BLOCK_SIZE + Cipher.BLOCK_SIZE, e) - mSent;
+			l = Math.min(b, w);
+			mRing.skip(l);
+			mSent += l;
+			w -= l;
+			if(l == b) {
+				mHeaderSent = 0;
+			}
+			if(mSent >= e) {
+				pop();
+			}
+		}
+	}
+
+	private void pop() {
+		mHead = (mHead + 1)%mEntries.length;
+		--mCount;
+		mSent = 0;
+		mHeaderSent = 0;
+	}
+
+	private void add(int e) {
+		if(mCount > 0 && e < 0) {
+			int last = (mHead + mCount - 1)%mEntries.length;
+			if(mEntries[last] < 0) {
+				mEntries[last] += e;
+				return;
+			}
+		}
+
+		if(mCount >= mEntries.length) {
+			int[] t = new int[mEntries.length<<1];
+			for(int i=0;i<mCount;i++) {
+				t[i] = mEntries[(mHead + i)%mEntries.length];
+			}
+			mEntries = t;
+			mHead = 0;
+		}
+
+		mEntries[(mHead + mCount)%mEntries.length] = e;
+		++mCount;
+	}
+}
@@ -4,17 +4,58 @@ import java.nio.ByteBuffer;
 
 import com.chedifier.ladder.base.ArrayUtils;
 import com.chedifier.ladder.base.Log;
-import com.chedifier.ladder.memory.ByteBufferPool;
 
 public class Cipher {
 	private static final String TAG = "Cipher";
 
-	private static final int BLOCK_SIZE = 1<<10;
+	static final int BLOCK_SIZE = 1<<10;
 	public static final int MAX_ENCRYPT_SIZE = BLOCK_SIZE<<2;
 	public static final int MAX_PARCEL_SIZE = MAX_ENCRYPT_SIZE<<1;
 	
 	private final byte[] mCodes = {1,2};
 	private ICoder[] mCoders = new ICoder[CODER.END];
+	//runs the whole chain in one pass when it is PADDING then SHIFT, wire format is the same.
+	private final PaddingShiftProguarder mFused;
+	private final IRandom mRandom;
+	private final PaddingPolicy mPadding;
+	
+	//bytes handed to encrypt and bytes put out for them, for the wire overhead.
+	private long mPlainBytes = 0L;
+	private long mWireBytes = 0L;
+	
+	//one parcel in work, shared by all ciphers on the thread. large enough for any parcel a channel buffer holds.
+	private static final ThreadLocal<ByteBuffer> sScratch = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(MAX_PARCEL_SIZE<<2);
+		}
+	};
+	
+	public Cipher() {
+		this(new FastRandom());
+	}
+	
+	public Cipher(IRandom random) {
+		this(random, new PaddingPolicy());
+	}
+	
+	/**
+	 * @param random shared by all coders of this cipher, so the cipher must stay on one thread at a time.
+	 * @param padding owned by this cipher, a budget is spent over its life.
+	 */
+	public Cipher(IRandom random,PaddingPolicy padding) {
+		mRandom = random;
+		mPadding = padding;
+		mFused = isPaddingShift(mCodes)?new PaddingShiftProguarder(mRandom,mPadding):null;
+	}
+	
+	public long getPlainBytes() {
+		return mPlainBytes;
+	}
+	
+	public long getWireBytes() {
+		return mWireBytes;
+	}
 	
 	/**
 	 * encrypt origin to result 
@@ -25,7 +66,24 @@ public class Cipher {
 	 * @return the len of data be encrypted
 	 */
 	public int encrypt(byte[] origin,int offset ,int len,ByteBuffer outBuffer) {
-		if(origin == null || !ArrayUtils.isValidateRange(origin.length, offset, len) || outBuffer == null) {
+		if(origin == null) {
+			Log.e(TAG, "infalidate input arguments!");
+			return 0;
+		}
+		
+		return encrypt(ByteBuffer.wrap(origin), offset, len, outBuffer);
+	}
+	
+	/**
+	 * encrypt content of origin to result, origin may be a direct buffer.
+	 * @param origin position and limit of origin are not touched
+	 * @param offset absolute index in origin
+	 * @param len
+	 * @param outBuffer
+	 * @return the len of data be encrypted
+	 */
+	public int encrypt(ByteBuffer origin,int offset ,int len,ByteBuffer outBuffer) {
+		if(origin == null || !ArrayUtils.isValidateRange(origin.capacity(), offset, len) || outBuffer == null) {
 			Log.e(TAG, "infalidate input arguments!");
 			return 0;
 		}
@@ -40,38 +98,99 @@ public class Cipher {
 			return ERR_NOT_ENOUGH_SPACE;
 		}
 		
-		ByteBuffer s = ByteBufferPool.obtain(estLen);
-		ByteBuffer t = ByteBufferPool.obtain(estLen);
-		ByteBuffer ss;
-		s.put((byte)0x00);
-		s.put(origin, offset, len);
-		
-		for(int i=0;i<mCodes.length;i++) {
-			byte cid = mCodes[i];
-			ICoder c = getCoder(cid);
-			t.clear();
-			t.put(cid);
-			if(c != null && c.encode(s.array(), 0, s.position(), t) > 0) {
-				ss = s; s = t; t = ss;
-			}
-			
-		}
-		
-		int r = pack(s.array(), 0, s.position(), outBuffer);
+		ByteBuffer parcel = encodeParcel(origin, offset, len);
+		int pos = outBuffer.position();
+		int r = pack(parcel.array(), parcel.position(), parcel.remaining(), outBuffer);
 		if(r <= 0) {
-			ByteBufferPool.recycle(s);
-			ByteBufferPool.recycle(t);
-			
 			Log.e(TAG, "pack failed.");
 			return 0;
 		}
 		
-		ByteBufferPool.recycle(s);
-		ByteBufferPool.recycle(t);
+		mPlainBytes += len;
+		mWireBytes += outBuffer.position() - pos;
 		
 		return len;
 	}
 	
+	/**
+	 * encrypt as {@link #encrypt(ByteBuffer, int, int, ByteBuffer)} but leave the parcel unpacked,
+	 * the caller sends it in blocks of {@link #BLOCK_SIZE}, each led by its length, and a 0 length after if the last is full.
+	 * @param outBuffer room of {@link #encodeLen(int)} needed, the parcel is coded straight into it if it has an array.
+	 * @return the len of data be encrypted
+	 */
+	public int encode(ByteBuffer origin,int offset ,int len,ByteBuffer outBuffer) {
+		if(origin == null || !ArrayUtils.isValidateRange(origin.capacity(), offset, len) || outBuffer == null) {
+			Log.e(TAG, "infalidate input arguments!");
+			return 0;
+		}
+		
+		if(len > MAX_ENCRYPT_SIZE) {
+			len = MAX_ENCRYPT_SIZE;
+		}
+		
+		if(encodeLen(len) > outBuffer.remaining()) {
+			Log.e(TAG, "encode failed,not enought buffer to store result");
+			return ERR_NOT_ENOUGH_SPACE;
+		}
+		
+		int n;
+		if(mFused != null && outBuffer.hasArray()) {
+			byte[] out = outBuffer.array();
+			int at = outBuffer.arrayOffset() + outBuffer.position();
+			out[at] = CODER.SHIFT;
+			n = 1 + mFused.encodeMarked(origin, offset, len, out, at + 1);
+			outBuffer.position(outBuffer.position() + n);
+		}else {
+			ByteBuffer parcel = encodeParcel(origin, offset, len);
+			n = parcel.remaining();
+			outBuffer.put(parcel);
+		}
+		
+		mPlainBytes += len;
+		mWireBytes += n + ((n/BLOCK_SIZE + 1)<<1);
+		
+		return len;
+	}
+	
+	/**
+	 * run the coder chain over origin in the scratch of the thread.
+	 * @return the scratch, with the parcel from position to limit.
+	 */
+	private ByteBuffer encodeParcel(ByteBuffer origin,int offset,int len) {
+		//coders only put their head before data and transform data in place,
+		//so the chain runs in one scratch with room reserved ahead.
+		ByteBuffer scratch = sScratch.get();
+		byte[] buf = scratch.array();
+		int start, end;
+		if(mFused != null) {
+			buf[0] = CODER.SHIFT;
+			start = 0;
+			end = 1 + mFused.encodeMarked(origin, offset, len, buf, 1);
+		}else {
+			int head = encodeHeadRoom(len);
+			start = head;
+			end = head + 1 + len;
+			buf[start] = 0x00;
+			scratch.clear();
+			scratch.position(start + 1);
+			copy(origin, offset, len, scratch);
+			
+			for(int i=0;i<mCodes.length;i++) {
+				byte cid = mCodes[i];
+				ICoder c = getCoder(cid);
+				int ns;
+				if(c != null && (ns = c.encodeInPlace(buf, start, end)) > 0) {
+					buf[--ns] = cid;
+					start = ns;
+				}
+			}
+		}
+		
+		scratch.limit(end);
+		scratch.position(start);
+		return scratch;
+	}
+	
 	/**
 	 * 
 	 * @param packs
@@ -81,71 +200,77 @@ public class Cipher {
 	 * @return the len of data be decrypted in packs
 	 */
 	public int decrypt(byte[] packs,int offset,int len,ByteBuffer outBuffer) {
-		if(packs == null || !ArrayUtils.isValidateRange(packs.length, offset, len)) {
+		return decrypt(packs, offset, len, outBuffer, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * 
+	 * @param packs
+	 * @param offset
+	 * @param len
+	 * @param outBuffer
+	 * @param maxParcels stop after so many parcels decrypted
+	 * @return the len of data be decrypted in packs
+	 */
+	public int decrypt(byte[] packs,int offset,int len,ByteBuffer outBuffer,int maxParcels) {
+		if(packs == null) {
 			Log.e(TAG, "decrypt>>> invalidate input.");
 			return 0;
 		}
 		
-		int estLen = decryptLen(len);
-		if(estLen > outBuffer.remaining()) {
-			Log.e(TAG, "decrypt failed,not enought buffer to store result");
-			return ERR_NOT_ENOUGH_SPACE;
+		return decrypt(ByteBuffer.wrap(packs), offset, len, outBuffer, maxParcels);
+	}
+	
+	public int decrypt(ByteBuffer packs,int offset,int len,ByteBuffer outBuffer) {
+		return decrypt(packs, offset, len, outBuffer, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * decrypt content of packs, packs may be a direct buffer.
+	 * @param packs position and limit of packs are not touched
+	 * @param offset absolute index in packs
+	 * @param len
+	 * @param outBuffer
+	 * @param maxParcels stop after so many parcels decrypted
+	 * @return the len of data be decrypted in packs
+	 */
+	public int decrypt(ByteBuffer packs,int offset,int len,ByteBuffer outBuffer,int maxParcels) {
+		if(packs == null || !ArrayUtils.isValidateRange(packs.capacity(), offset, len)) {
+			Log.e(TAG, "decrypt>>> invalidate input.");
+			return 0;
 		}
 		
-		ByteBuffer s = ByteBufferPool.obtain(estLen);
-		ByteBuffer t = ByteBufferPool.obtain(estLen);
-		ByteBuffer ss;
+		ByteBuffer scratch = sScratch.get();
+		byte[] buf = scratch.array();
 		int off = offset;
-		int result, l, r = len;
-		while(true) {
-			s.clear();
-			l = unpack(packs, off, r, s);
-			if(l <= 0 || s.position() <= 0) {
+		int l, r = len;
+		while(maxParcels-- > 0) {
+			scratch.clear();
+			l = unpack(packs, off, r, scratch);
+			if(l <= 0 || scratch.position() <= 0) {
 				break;
 			}
 			
-			boolean succ = true;
-			while(true) {
-				
-				s.flip();
-				byte cid = s.get();
-				
-				if(cid != 0) {
-					ICoder c = getCoder(cid);
-					if(c == null) {
-						Log.e(TAG, "invalidate cid " + cid);
-						succ = false;
-						break;
-					}
-					
-					t.clear();
-					result = c.decode(s.array(), s.position(), s.remaining(), t);
-					if(result <= 0) {
-						Log.e(TAG, "decode failed " + result);
-						succ = false;
-						break;
-					}
-					
-					ss = s; s = t; t = ss;
-					
-				}else {
-					break;
-				}
+			int end = scratch.position();
+			int start = decodeParcel(buf, 0, end);
+			if(start < 0) {
+				Log.e(TAG, "decode failed.");
+				break;
 			}
 			
-			if(!succ) {
-				Log.e(TAG, "decode failed.");
+			if(outBuffer.remaining() < end - start) {
+				if(off == offset) {
+					Log.e(TAG, "decrypt failed,not enought buffer to store result");
+					return ERR_NOT_ENOUGH_SPACE;
+				}
 				break;
 			}
 			
-			outBuffer.put(s);
+			outBuffer.put(buf, start, end - start);
 			r -= l;
 			off += l;
 		}
 		
-		ByteBufferPool.recycle(s);
-		ByteBufferPool.recycle(t);
-		
 		if(off == offset) {
 			Log.e(TAG, "unpack failed");
 			return 0;
@@ -154,12 +279,55 @@ public class Cipher {
 		return off-offset;
 	}
 	
-	private static int estimatePackLen(int len) {
-		return (((len+BLOCK_SIZE)/BLOCK_SIZE)<<1) + 2 + len;
+	/**
+	 * run the coder chain back over one unpacked parcel in place.
+	 * @return start of the origin data in buf, end stays, or -1 if failed.
+	 */
+	int decodeParcel(byte[] buf,int start,int end) {
+		while(start < end) {
+			byte cid = buf[start++];
+			if(cid == 0) {
+				return start;
+			}
+			
+			ICoder c = (cid == CODER.SHIFT && mFused != null)?mFused:getCoder(cid);
+			if(c == null) {
+				Log.e(TAG, "invalidate cid " + cid);
+				return -1;
+			}
+			
+			start = c.decodeInPlace(buf, start, end);
+			if(start < 0) {
+				Log.e(TAG, "decode failed " + start);
+				return -1;
+			}
+		}
+		
+		return -1;
 	}
 	
-	private static int estimateUnpackLen(int len) {
-		return len;
+	private static boolean isPaddingShift(byte[] codes) {
+		return codes != null && codes.length == 2 && codes[0] == CODER.PADDING && codes[1] == CODER.SHIFT;
+	}
+	
+	//bytes the coder chain may put ahead of the origin data, including the 0 end mark.
+	private int encodeHeadRoom(int len) {
+		int l = len + 1;
+		int head = 1;
+		for(int i=0;i<mCodes.length; i++) {
+			ICoder c = getCoder(mCodes[i]);
+			if(c != null) {
+				int el = c.estimateEncodeLen(l);
+				head += el - l + 1;
+				l = el + 1;
+			}
+		}
+		
+		return head;
+	}
+	
+	private static int estimatePackLen(int len) {
+		return (((len+BLOCK_SIZE)/BLOCK_SIZE)<<1) + 2 + len;
 	}
 	
 	//return the length of origin be packed, either 0 or len will return
@@ -193,19 +361,25 @@ public class Cipher {
 		return s;
 	}
 
+	//copy len bytes from offset of src to dest, without touching position of src.
+	private static void copy(ByteBuffer src,int offset,int len,ByteBuffer dest) {
+		if(src.hasArray()) {
+			dest.put(src.array(), src.arrayOffset()+offset, len);
+		}else {
+			ByteBuffer d = src.duplicate();
+			d.limit(offset+len);
+			d.position(offset);
+			dest.put(d);
+		}
+	}
+
 	//unpack one parcel in data and return the length of data be unpacked
-	private int unpack(byte[] data, int offset, int len, ByteBuffer outBuffer) {
-		if(data == null || !ArrayUtils.isValidateRange(data.length, offset, len) || outBuffer == null) {
+	private int unpack(ByteBuffer data, int offset, int len, ByteBuffer outBuffer) {
+		if(data == null || !ArrayUtils.isValidateRange(data.capacity(), offset, len) || outBuffer == null) {
 			Log.d(TAG, "unpack infalidate input arguments! " + data + " offset="+offset+" len="+len);
 			return 0;
 		}
 		
-		int ll = estimateUnpackLen(len);
-		if(outBuffer.remaining() < ll) {
-			Log.e(TAG, "not enough space to unpack");
-			return 0;
-		}
-		
 		int i = 0;
 		int blockSize = 0;
 		outBuffer.mark();
@@ -214,7 +388,7 @@ public class Cipher {
 				break;
 			}
 			
-			blockSize = ((int)((data[offset+i]&0xFF)<<8))|((int)((data[offset+i+1]&0xFF)));
+			blockSize = ((int)((data.get(offset+i)&0xFF)<<8))|((int)((data.get(offset+i+1)&0xFF)));
 			i+=2;
 			
 			if(blockSize > BLOCK_SIZE) {
@@ -233,7 +407,7 @@ public class Cipher {
 			}
 			
 			if(blockSize > 0) {
-				outBuffer.put(data, offset+i, blockSize);
+				copy(data, offset+i, blockSize, outBuffer);
 				i += blockSize;
 			}
 			
@@ -263,11 +437,11 @@ public class Cipher {
 			if(mCoders[code] == null) {
 				switch(code) {
 					case CODER.PADDING:{
-						mCoders[code] = new PaddingProguarder();
+						mCoders[code] = new PaddingProguarder(mRandom,mPadding);
 						break;
 					}
 					case CODER.SHIFT:{
-						mCoders[code] = new ShiftProguarder();
+						mCoders[code] = new ShiftProguarder(mRandom);
 						break;
 					}
 				}
@@ -280,6 +454,13 @@ public class Cipher {
 	}
 	
 	public int encryptLen(int len) {
+		return estimatePackLen(encodeLen(len));
+	}
+	
+	/**
+	 * @return the most {@link #encode(ByteBuffer, int, int, ByteBuffer)} may put for len.
+	 */
+	public int encodeLen(int len) {
 		if(len > MAX_ENCRYPT_SIZE) {
 			len = MAX_ENCRYPT_SIZE;
 		}
@@ -294,7 +475,7 @@ public class Cipher {
 			}
 		}
 		
-		return estimatePackLen(len);
+		return len;
 	}
 	
 	public int decryptLen(int len) {
@@ -303,6 +484,7 @@ public class Cipher {
 	
 	public static final int ERR_NOT_ENOUGH_SPACE = -1;
 	public static final int ERR_NOT_COMPLETE 	= -2;
+	public static final int ERR_BROKEN 			= -3;
 	
 	
 	public static final class CODER{
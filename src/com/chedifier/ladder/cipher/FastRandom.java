@@ -0,0 +1,71 @@
+package com.chedifier.ladder.cipher;
+
+import java.util.SplittableRandom;
+
+/**
+ * xoroshiro128+, no locks and no shared state once seeded.
+ * seeds are split from one process wide generator, so ciphers of different connections differ.
+ */
+public class FastRandom implements IRandom{
+
+	private static final SplittableRandom sSeeder = new SplittableRandom();
+
+	private long mS0;
+	private long mS1;
+
+	public FastRandom() {
+		synchronized (sSeeder) {
+			mS0 = sSeeder.nextLong();
+			mS1 = sSeeder.nextLong();
+		}
+
+		if((mS0|mS1) == 0) {
+			mS1 = 0x9E3779B97F4A7C15L;
+		}
+	}
+
+	@Override
+	public long nextLong() {
+		long s0 = mS0;
+		long s1 = mS1;
+		long r = s0 + s1;
+		s1 ^= s0;
+		mS0 = Long.rotateLeft(s0, 24) ^ s1 ^ (s1 << 16);
+		mS1 = Long.rotateLeft(s1, 37);
+		return r;
+	}
+
+	@Override
+	public int nextInt(int bound) {
+		if(bound <= 0) {
+			return 0;
+		}
+
+		//high bits are the better ones of xoroshiro+.
+		return (int)(((nextLong()>>>32) * bound)>>>32);
+	}
+
+	@Override
+	public void nextBytes(byte[] out, int offset, int len) {
+		int i = offset, e = offset + len;
+		for(;i+8<=e;i+=8) {
+			long r = nextLong();
+			out[i] = (byte)r;
+			out[i+1] = (byte)(r>>>8);
+			out[i+2] = (byte)(r>>>16);
+			out[i+3] = (byte)(r>>>24);
+			out[i+4] = (byte)(r>>>32);
+			out[i+5] = (byte)(r>>>40);
+			out[i+6] = (byte)(r>>>48);
+			out[i+7] = (byte)(r>>>56);
+		}
+
+		if(i < e) {
+			long r = nextLong();
+			for(;i<e;i++) {
+				out[i] = (byte)r;
+				r >>>= 8;
+			}
+		}
+	}
+}
@@ -7,6 +7,17 @@ public interface ICoder {
 	int encode(byte[] origin,int offset,int len,ByteBuffer outBuffer);
 	int decode(byte[] encode,ByteBuffer outBuffer);
 	int decode(byte[] encode,int offset,int len,ByteBuffer outBuffer);
+	/**
+	 * encode data[start,end) in place, the head of coder is put right before start.
+	 * @return the new start of encoded data which still ends at end, or -1 if failed and data untouched.
+	 * at most {@link #estimateEncodeLen(int)} - (end-start) bytes before start are used.
+	 */
+	int encodeInPlace(byte[] data,int start,int end);
+	/**
+	 * decode data[start,end) in place.
+	 * @return the new start of decoded data which still ends at end, or -1 if failed.
+	 */
+	int decodeInPlace(byte[] data,int start,int end);
 	int estimateEncodeLen(int len);
 	int estimateDecodeLen(int len);
 }
@@ -0,0 +1,17 @@
+package com.chedifier.ladder.cipher;
+
+/**
+ * randomness for coders, padding and shifts need to look random only, not to be secure.
+ * an instance is owned by one {@link Cipher} and never shared between threads.
+ */
+public interface IRandom {
+	long nextLong();
+	/**
+	 * @return in [0,bound), 0 if bound is not positive.
+	 */
+	int nextInt(int bound);
+	/**
+	 * fill out[offset,offset+len), 8 bytes a time.
+	 */
+	void nextBytes(byte[] out,int offset,int len);
+}
@@ -0,0 +1,137 @@
+package com.chedifier.ladder.cipher;
+
+/**
+ * decides how many padding bytes a parcel gets, one instance per {@link Cipher}.
+ * any length from 0 up is decodable by {@link PaddingProguarder}, so peers need not agree on the policy.
+ * <ul>
+ * <li>{@link #RANDOM}: 1 to 512-len random bytes, as it always was.</li>
+ * <li>{@link #FIXED}: size bytes on every parcel.</li>
+ * <li>{@link #BUCKET}: up to the next size class, padded parcels of similar length look the same.</li>
+ * <li>{@link #BUDGET}: random as {@link #RANDOM} until size bytes spent, nothing after, so it goes to the first parcels.</li>
+ * </ul>
+ */
+public class PaddingPolicy {
+
+	public static final int RANDOM 	= 0;
+	public static final int FIXED 	= 1;
+	public static final int BUCKET 	= 2;
+	public static final int BUDGET 	= 3;
+
+	private static final String[] NAMES = {"random","fixed","bucket","budget"};
+
+	public static final int DEFAULT_FIXED = 16;
+	public static final int DEFAULT_BUDGET = 4<<10;
+	private static final int MAX_SIZE = 8<<10;
+
+	//smallest size class, classes double up to MAX_CLASS and go by MAX_CLASS after.
+	private static final int MIN_CLASS = 64;
+	private static final int MAX_CLASS = 1<<10;
+
+	private static volatile int sMode = RANDOM;
+	private static volatile int sSize = 0;
+
+	private final int mMode;
+	private final int mSize;
+	private int mBudget;
+
+	/**
+	 * policy of ciphers created after.
+	 * @param mode one of {@link #RANDOM} {@link #FIXED} {@link #BUCKET} {@link #BUDGET}
+	 * @param size bytes per parcel for {@link #FIXED}, bytes per cipher for {@link #BUDGET}, 0 for default.
+	 */
+	public static void configure(int mode,int size) {
+		sMode = (mode < RANDOM || mode > BUDGET)?RANDOM:mode;
+		sSize = size;
+	}
+
+	/**
+	 * @return mode named by name, {@link #RANDOM} if unknown.
+	 */
+	public static int parseMode(String name) {
+		for(int i=0;i<NAMES.length;i++) {
+			if(NAMES[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+
+		return RANDOM;
+	}
+
+	public PaddingPolicy() {
+		this(sMode, sSize);
+	}
+
+	public PaddingPolicy(int mode,int size) {
+		mMode = mode;
+		if(size <= 0) {
+			size = mode == FIXED?DEFAULT_FIXED:DEFAULT_BUDGET;
+		}
+		mSize = size > MAX_SIZE?MAX_SIZE:size;
+		mBudget = mSize;
+	}
+
+	/**
+	 * @param len length of data to be padded
+	 * @return padding length of next parcel, spent from budget.
+	 */
+	public int padding(int len,IRandom random) {
+		switch(mMode) {
+			case FIXED:{
+				return mSize;
+			}
+			case BUCKET:{
+				return sizeClass(len + 2) - len - 2;
+			}
+			case BUDGET:{
+				if(mBudget <= 0) {
+					return 0;
+				}
+
+				int p = Math.min(1 + random.nextInt(PaddingProguarder.paddingRange(len)), mBudget);
+				mBudget -= p;
+				return p;
+			}
+			default:{
+				return 1 + random.nextInt(PaddingProguarder.paddingRange(len));
+			}
+		}
+	}
+
+	/**
+	 * @return the most {@link #padding(int, IRandom)} would give for len.
+	 */
+	public int maxPadding(int len) {
+		switch(mMode) {
+			case FIXED:{
+				return mSize;
+			}
+			case BUCKET:{
+				return sizeClass(len + 2) - len - 2;
+			}
+			case BUDGET:{
+				return Math.min(Math.max(PaddingProguarder.paddingRange(len), 1), mBudget);
+			}
+			default:{
+				return Math.max(PaddingProguarder.paddingRange(len), 1);
+			}
+		}
+	}
+
+	private static int sizeClass(int len) {
+		if(len > MAX_CLASS) {
+			return (len + MAX_CLASS - 1)/MAX_CLASS*MAX_CLASS;
+		}
+
+		int c = MIN_CLASS;
+		while(c < len) {
+			c <<= 1;
+		}
+
+		return c;
+	}
+
+	@Override
+	public String toString() {
+		return NAMES[mMode] + "(" + mSize + ")";
+	}
+}
@@ -9,10 +9,23 @@ public class PaddingProguarder implements ICoder{
 	
 	
 	private TYPE mType = TYPE.HEAD;
-	private static final int MAX_PADDING = 512;
+	static final int MAX_PADDING = 512;
+	
+	private final IRandom mRandom;
 	
 	public PaddingProguarder() {
-		
+		this(new FastRandom());
+	}
+	
+	private final PaddingPolicy mPolicy;
+	
+	public PaddingProguarder(IRandom random) {
+		this(random, new PaddingPolicy());
+	}
+	
+	public PaddingProguarder(IRandom random,PaddingPolicy policy) {
+		mRandom = random;
+		mPolicy = policy;
 	}
 	
 	@Override
@@ -41,14 +54,19 @@ public class PaddingProguarder implements ICoder{
 		
 		switch(mType) {
 			case HEAD:{
-				int p = 1 + (int)(Math.random() * paddingRange(len));
+				int p = mPolicy.padding(len, mRandom);
 				if(outBuffer.remaining() < p+len+2) {
 					return 0;
 				}
 				outBuffer.put((byte)(((p&0xFF00)>>8)&0xFF));
 				outBuffer.put((byte)(p&0xFF));
+				long r = 0;
 				for(int i=0;i<p;i++) {
-					outBuffer.put((byte)(Math.random() * 256));
+					if((i&7) == 0) {
+						r = mRandom.nextLong();
+					}
+					outBuffer.put((byte)r);
+					r >>>= 8;
 				}
 				
 				outBuffer.put(origin,offset,len);
@@ -84,18 +102,54 @@ public class PaddingProguarder implements ICoder{
 		return 0;
 	}
 	
+	@Override
+	public int encodeInPlace(byte[] data, int start, int end) {
+		int len = end - start;
+		if(data == null || start < 0 || len <= 0 || end > data.length) {
+			return -1;
+		}
+		
+		int p = mPolicy.padding(len, mRandom);
+		if(start < p+2) {
+			return -1;
+		}
+		
+		int s = start - p - 2;
+		data[s] = (byte)(((p&0xFF00)>>8)&0xFF);
+		data[s+1] = (byte)(p&0xFF);
+		mRandom.nextBytes(data, s+2, p);
+		
+		return s;
+	}
+	
+	@Override
+	public int decodeInPlace(byte[] data, int start, int end) {
+		int len = end - start;
+		if(data == null || start < 0 || len <= 1 || end > data.length) {
+			Log.e(TAG, "decode>> invalid input.");
+			return -1;
+		}
+		
+		int p = ((data[start]&0xFF)<<8)|(data[start+1]&0xFF);
+		if(p+2 < len) {
+			return start+p+2;
+		}
+		
+		return -1;
+	}
+	
 	@Override
 	public int estimateDecodeLen(int len) {
 		return len;
 	}
 	
-	private int paddingRange(int len) {
+	static int paddingRange(int len) {
 		return len > MAX_PADDING?0:MAX_PADDING-len;
 	}
 	
 	@Override
 	public int estimateEncodeLen(int len) {
-		return len+paddingRange(len)+2;
+		return len+mPolicy.maxPadding(len)+2;
 	}
 	
 	public enum TYPE{
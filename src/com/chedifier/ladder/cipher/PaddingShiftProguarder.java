@@ -0,0 +1,223 @@
+package com.chedifier.ladder.cipher;
+
+import java.nio.ByteBuffer;
+
+import com.chedifier.ladder.base.ArrayUtils;
+import com.chedifier.ladder.base.Log;
+import com.chedifier.ladder.cipher.Cipher.CODER;
+
+/**
+ * {@link PaddingProguarder} followed by {@link ShiftProguarder} in one pass.
+ * output is byte for byte what the two chained by {@link Cipher} would give, the inner PADDING cid included,
+ * so it goes on wire as a SHIFT coder and either end may run the chain or this.
+ * padding bytes are random anyway, they are put without being shifted, and skipped without being unshifted.
+ */
+public class PaddingShiftProguarder implements ICoder{
+
+	private static final String TAG = "PaddingShiftProguarder";
+
+	//cid of PADDING, padding length
+	private static final int INNER_HEAD = 3;
+	
+	private final IRandom mRandom;
+	
+	public PaddingShiftProguarder() {
+		this(new FastRandom());
+	}
+	
+	private final PaddingPolicy mPolicy;
+	
+	public PaddingShiftProguarder(IRandom random) {
+		this(random, new PaddingPolicy());
+	}
+	
+	public PaddingShiftProguarder(IRandom random,PaddingPolicy policy) {
+		mRandom = random;
+		mPolicy = policy;
+	}
+
+	/**
+	 * encode origin[offset,offset+len) led by the 0 end mark of {@link Cipher}, reading origin only once.
+	 * @param out room of {@link #estimateEncodeLen(int)} of len+1 needed from at
+	 * @return length put in out
+	 */
+	int encodeMarked(ByteBuffer origin,int offset,int len,byte[] out,int at) {
+		int p = padding(len + 1);
+		return fuse(origin, offset, len, true, out, at, p, shift());
+	}
+
+	@Override
+	public int encode(byte[] origin,ByteBuffer outBuffer) {
+		if(origin == null) {
+			return 0;
+		}
+
+		return encode(origin,0,origin.length,outBuffer);
+	}
+
+	@Override
+	public int decode(byte[] encode,ByteBuffer outBuffer) {
+		if(encode == null) {
+			return 0;
+		}
+
+		return decode(encode,0,encode.length,outBuffer);
+	}
+
+	@Override
+	public int encode(byte[] origin, int offset, int len, ByteBuffer outBuffer) {
+		if(outBuffer == null || origin == null || !ArrayUtils.isValidateRange(origin.length, offset, len)) {
+			return 0;
+		}
+
+		int p = padding(len);
+		int n = 1 + INNER_HEAD + p + len;
+		if(outBuffer.remaining() < n) {
+			return 0;
+		}
+
+		if(outBuffer.hasArray()) {
+			fuse(ByteBuffer.wrap(origin), offset, len, false, outBuffer.array(), outBuffer.arrayOffset() + outBuffer.position(), p, shift());
+			outBuffer.position(outBuffer.position() + n);
+		}else {
+			byte[] t = new byte[n];
+			fuse(ByteBuffer.wrap(origin), offset, len, false, t, 0, p, shift());
+			outBuffer.put(t);
+		}
+
+		return n;
+	}
+
+	@Override
+	public int decode(byte[] encode, int offset, int len, ByteBuffer outBuffer) {
+		if(outBuffer == null || encode == null || !ArrayUtils.isValidateRange(encode.length, offset, len)) {
+			Log.e(TAG, "decode>> invalid input.");
+			return 0;
+		}
+
+		byte[] t = new byte[len];
+		System.arraycopy(encode, offset, t, 0, len);
+		int s = decodeInPlace(t, 0, len);
+		if(s < 0 || outBuffer.remaining() < len - s) {
+			return 0;
+		}
+
+		outBuffer.put(t, s, len - s);
+		return len - s;
+	}
+
+	@Override
+	public int encodeInPlace(byte[] data, int start, int end) {
+		int len = end - start;
+		if(data == null || start < 0 || len <= 0 || end > data.length) {
+			return -1;
+		}
+
+		int p = padding(len);
+		int at = start - 1 - INNER_HEAD - p;
+		if(at < 0) {
+			return -1;
+		}
+
+		//every byte is read before written at the same index.
+		fuse(ByteBuffer.wrap(data), start, len, false, data, at, p, shift());
+		return at;
+	}
+
+	@Override
+	public int decodeInPlace(byte[] data, int start, int end) {
+		if(data == null || start < 0 || end - start < 1 || end > data.length) {
+			Log.e(TAG, "decode>> invalid input.");
+			return -1;
+		}
+
+		int s = data[start];
+		if(s < 0 || s > 7) {
+			Log.e(TAG, "decode>> invalid shift " + s);
+			return -1;
+		}
+
+		int i = start + 1;
+		if(end - i < INNER_HEAD || unshift(data[i], s) != CODER.PADDING) {
+			//not padded inside, just a shift.
+			unshift(data, i, end, s);
+			return i;
+		}
+
+		int p = ((unshift(data[i+1], s+1)&0xFF)<<8)|(unshift(data[i+2], s+2)&0xFF);
+		int body = i + INNER_HEAD + p;
+		if(body >= end) {
+			Log.e(TAG, "decode>> padding exceeded " + p);
+			return -1;
+		}
+
+		unshift(data, body, end, s + INNER_HEAD + p);
+		return body;
+	}
+
+	@Override
+	public int estimateDecodeLen(int len) {
+		return len-1;
+	}
+
+	@Override
+	public int estimateEncodeLen(int len) {
+		return 1 + INNER_HEAD + mPolicy.maxPadding(len) + len;
+	}
+
+	private int padding(int len) {
+		return mPolicy.padding(len, mRandom);
+	}
+
+	private int shift() {
+		return 1 + mRandom.nextInt(7);
+	}
+
+	/**
+	 * put shift, then shifted PADDING cid and padding length, padding, the 0 end mark if asked, and shifted src.
+	 * @return length put
+	 */
+	private int fuse(ByteBuffer src,int offset,int len,boolean mark,byte[] out,int at,int p,int s) {
+		int i = at;
+		out[i++] = (byte)s;
+		out[i++] = shift(CODER.PADDING, s);
+		out[i++] = shift((byte)((p>>8)&0xFF), s+1);
+		out[i++] = shift((byte)(p&0xFF), s+2);
+		mRandom.nextBytes(out, i, p);
+		i += p;
+
+		int k = (s + INNER_HEAD + p)&7;
+		if(mark) {
+			out[i++] = 0;//0 stays 0 under any shift
+			k = (k+1)&7;
+		}
+
+		if(src.hasArray()) {
+			ShiftProguarder.shift(src.array(), src.arrayOffset()+offset, out, i, len, k);
+		}else {
+			for(int j=0;j<len;j++) {
+				int v = src.get(offset+j)&0xFF;
+				out[i+j] = (byte)((v<<k) | (v>>(8-k)));
+				if(++k>7) {
+					k=0;
+				}
+			}
+		}
+
+		return i + len - at;
+	}
+
+	private static byte shift(byte b,int k) {
+		k &= 7;
+		return (byte)(((b&0xFF)<<k) | ((b&0xFF)>>(8-k)));
+	}
+
+	private static byte unshift(byte b,int k) {
+		k &= 7;
+		return (byte)(((b&0xFF)>>k) | ((b&0xFF)<<(8-k)));
+	}
+
+	private static void unshift(byte[] data,int from,int end,int k) {
+		ShiftProguarder.unshift(data, from, data, from, end-from, k&7);
+	}
+}
@@ -1,14 +1,110 @@
 package com.chedifier.ladder.cipher;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import com.chedifier.ladder.base.ArrayUtils;
 import com.chedifier.ladder.base.Log;
 
+/**
+ * rotates every byte left by a shift which goes 0..7 round, starting from a random one put ahead.
+ * the pattern repeats every 8 bytes, so in place coding works on 64 bits words,
+ * the byte loop is kept for tails and for shifts out of 0..7 from a broken peer.
+ */
 public class ShiftProguarder implements ICoder{
 	
 	private static final String TAG = "ShiftProguarder";
+	
+	//shorter runs are not worth the word setup.
+	private static final int WORD_MIN = 16;
+	
+	//per byte rotation of a whole word by 1, 2 and 4.
+	private static final long HI1 = 0xFEFEFEFEFEFEFEFEL, LO1 = 0x0101010101010101L;
+	private static final long HI2 = 0xFCFCFCFCFCFCFCFCL, LO2 = 0x0303030303030303L;
+	private static final long HI4 = 0xF0F0F0F0F0F0F0F0L, LO4 = 0x0F0F0F0F0F0F0F0FL;
+	
+	//[first shift][bit of rotation], lanes of a little endian word to be rotated by 1, 2 and 4.
+	private static final long[][] LEFT_LANES = new long[8][3];
+	private static final long[][] RIGHT_LANES = new long[8][3];
+	
+	static {
+		for(int k=0;k<8;k++) {
+			for(int b=0;b<3;b++) {
+				for(int j=0;j<8;j++) {
+					if(((((k+j)&7)>>b)&1) != 0) {
+						LEFT_LANES[k][b] |= 0xFFL<<(j<<3);
+					}
+					
+					//right by r is left by 8-r
+					if(((((8-((k+j)&7))&7)>>b)&1) != 0) {
+						RIGHT_LANES[k][b] |= 0xFFL<<(j<<3);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * rotate src left by k, k+1 ... into dst, src and dst may be the same range.
+	 * @return the shift of next byte
+	 */
+	static int shift(byte[] src,int from,byte[] dst,int to,int len,int k) {
+		return rotate(src, from, dst, to, len, k, true);
+	}
+	
+	/**
+	 * rotate src right by k, k+1 ... into dst, src and dst may be the same range.
+	 * @return the shift of next byte
+	 */
+	static int unshift(byte[] src,int from,byte[] dst,int to,int len,int k) {
+		return rotate(src, from, dst, to, len, k, false);
+	}
+	
+	private static int rotate(byte[] src,int from,byte[] dst,int to,int len,int k,boolean left) {
+		int i = 0;
+		if(len >= WORD_MIN) {
+			ByteBuffer s = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+			ByteBuffer d = src == dst?s:ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+			long[] lanes = left?LEFT_LANES[k]:RIGHT_LANES[k];
+			long m1 = lanes[0], m2 = lanes[1], m4 = lanes[2];
+			for(;i+8<=len;i+=8) {
+				long w = s.getLong(from+i);
+				long r = ((w<<1)&HI1)|((w>>>7)&LO1);
+				w ^= (w^r)&m1;
+				r = ((w<<2)&HI2)|((w>>>6)&LO2);
+				w ^= (w^r)&m2;
+				r = ((w<<4)&HI4)|((w>>>4)&LO4);
+				w ^= (w^r)&m4;
+				d.putLong(to+i, w);
+			}
+		}
+		
+		return rotateBytes(src, from+i, dst, to+i, len-i, k, left);
+	}
+	
+	//scalar, the shift k walks 0..7.
+	private static int rotateBytes(byte[] src,int from,byte[] dst,int to,int len,int k,boolean left) {
+		for(int i=0;i<len;i++) {
+			int v = src[from+i]&0xFF;
+			dst[to+i] = (byte)(left?((v<<k)|(v>>(8-k))):((v>>k)|(v<<(8-k))));
+			if(++k>7) {
+				k=0;
+			}
+		}
+		
+		return k;
+	}
 
+	private final IRandom mRandom;
+	
+	public ShiftProguarder() {
+		this(new FastRandom());
+	}
+	
+	public ShiftProguarder(IRandom random) {
+		mRandom = random;
+	}
+	
 	@Override
 	public int encode(byte[] origin,ByteBuffer outBuffer) {
 		if(origin == null || outBuffer == null) {
@@ -37,7 +133,7 @@ public class ShiftProguarder implements ICoder{
 			return 0;
 		}
 		
-		byte s = (byte)(1 + (int)(Math.random() * 7));
+		byte s = (byte)(1 + mRandom.nextInt(7));
 		Log.i(TAG,"shift " + s);
 		
 		outBuffer.put(s); 
@@ -79,6 +175,46 @@ public class ShiftProguarder implements ICoder{
 		return i-1;
 	}
 	
+	@Override
+	public int encodeInPlace(byte[] data, int start, int end) {
+		if(data == null || start < 1 || end <= start || end > data.length) {
+			return -1;
+		}
+		
+		byte s = (byte)(1 + mRandom.nextInt(7));
+		Log.i(TAG,"shift " + s);
+		
+		data[start-1] = s;
+		shift(data, start, data, start, end-start, s);
+		
+		return start-1;
+	}
+	
+	@Override
+	public int decodeInPlace(byte[] data, int start, int end) {
+		if(data == null || start < 0 || end - start < 1 || end > data.length) {
+			Log.e(TAG, "decode>> invalid input.");
+			return -1;
+		}
+		
+		byte s = data[start];
+		Log.i(TAG,"shift " + s);
+		if(s >= 0 && s <= 7) {
+			unshift(data, start+1, data, start+1, end-start-1, s);
+			return start+1;
+		}
+		
+		for(int i=start+1;i<end;i++) {
+			data[i] = (byte)(((data[i]&0xFF)>>s)|((data[i]&0xFF)<<(8-s)));
+			
+			if(++s>7) {
+				s=0;
+			}
+		}
+		
+		return start+1;
+	}
+	
 	@Override
 	public int estimateDecodeLen(int len) {
 		return len-1;
@@ -0,0 +1,198 @@
+package com.chedifier.ladder.cipher;
+
+import java.nio.ByteBuffer;
+
+import com.chedifier.ladder.base.ArrayUtils;
+import com.chedifier.ladder.base.Log;
+
+/**
+ * decrypts one direction of a stream as bytes arrive, the result is what {@link Cipher#decrypt(ByteBuffer, int, int, ByteBuffer)} gives.
+ * block headers parsed and block payload copied are kept across calls, so a parcel trickling in is parsed once
+ * however it is split, and bytes fed are done with, the caller need not keep them.
+ * must start at a parcel boundary, and like the cipher, stay on one thread at a time.
+ */
+public class StreamDecoder {
+
+	private static final String TAG = "StreamDecoder";
+
+	//same as the scratch of cipher, no encrypter puts a larger parcel.
+	private static final int MAX_PARCEL = Cipher.MAX_PARCEL_SIZE<<2;
+	private static final int INIT_PARCEL = Cipher.BLOCK_SIZE<<2;
+
+	private final Cipher mCipher;
+
+	//unpacked bytes of the parcel in work.
+	private byte[] mParcel;
+	private int mParcelLen = 0;
+
+	//header bytes got, and the header so far.
+	private int mHeaderLen = 0;
+	private int mHeader = 0;
+
+	//size of the block in work and bytes of it still to come, -1 while a header is expected.
+	private int mBlockSize = 0;
+	private int mBlockRemain = -1;
+
+	//decrypted parcel outBuffer had no room for, mParcel[mOutStart,mOutStart+mOutLen).
+	private int mOutStart = 0;
+	private int mOutLen = 0;
+
+	private boolean mBroken = false;
+
+	public StreamDecoder(Cipher cipher) {
+		mCipher = cipher;
+	}
+
+	/**
+	 * feed packs[offset,offset+len), decrypted parcels are put to outBuffer as each completes.
+	 * stops ahead of the header of a last block when the parcel may not fit outBuffer, bytes from there are to be fed again.
+	 * a parcel completed without room in outBuffer, as buffers differ between calls, is kept and put out first by a later call,
+	 * which takes no bytes until it is out, see {@link #hasPending()}.
+	 * @param packs position and limit of packs are not touched, may be a direct buffer.
+	 * @param offset absolute index in packs
+	 * @param len 0 to only put out a kept parcel.
+	 * @return bytes taken of packs, less than len only if outBuffer is full, or {@link Cipher#ERR_BROKEN} if the stream can not be decrypted.
+	 */
+	public int decode(ByteBuffer packs,int offset,int len,ByteBuffer outBuffer) {
+		if(mBroken) {
+			return Cipher.ERR_BROKEN;
+		}
+
+		if(outBuffer == null) {
+			Log.e(TAG, "decode>>> invalidate output.");
+			return 0;
+		}
+
+		if(mOutLen > 0 && !flush(outBuffer) || len == 0) {
+			return 0;
+		}
+
+		if(packs == null || !ArrayUtils.isValidateRange(packs.capacity(), offset, len)) {
+			Log.e(TAG, "decode>>> invalidate input.");
+			return 0;
+		}
+
+		int i = offset, end = offset + len;
+		while(i < end) {
+			if(mBlockRemain < 0) {
+				int h = (mHeader<<8)|(packs.get(i)&0xFF);
+				if(mHeaderLen == 0) {
+					mHeader = h;
+					mHeaderLen = 1;
+					++i;
+					continue;
+				}
+
+				if(h > Cipher.BLOCK_SIZE || mParcelLen + h > MAX_PARCEL) {
+					Log.e(TAG, "decode>>> broken block " + h + " parcel " + mParcelLen);
+					return broken();
+				}
+
+				//last block, take it only if the whole parcel may go out.
+				if(h < Cipher.BLOCK_SIZE && outBuffer.remaining() < mParcelLen + h) {
+					break;
+				}
+
+				++i;
+				mHeaderLen = 0;
+				mHeader = 0;
+				mBlockSize = h;
+				mBlockRemain = h;
+				ensure(mParcelLen + h);
+			}
+
+			int n = Math.min(mBlockRemain, end - i);
+			if(n > 0) {
+				copy(packs, i, n);
+				i += n;
+				mBlockRemain -= n;
+			}
+
+			if(mBlockRemain > 0) {
+				break;
+			}
+
+			mBlockRemain = -1;
+			if(mBlockSize < Cipher.BLOCK_SIZE) {
+				if(!unpack()) {
+					return broken();
+				}
+
+				if(!flush(outBuffer)) {
+					break;
+				}
+			}
+		}
+
+		return i - offset;
+	}
+
+	/**
+	 * @return true if a decrypted parcel waits for room in outBuffer.
+	 */
+	public boolean hasPending() {
+		return mOutLen > 0;
+	}
+
+	private boolean unpack() {
+		int len = mParcelLen;
+		mParcelLen = 0;
+		if(len <= 0) {
+			Log.e(TAG, "decode>>> empty parcel.");
+			return false;
+		}
+
+		int start = mCipher.decodeParcel(mParcel, 0, len);
+		if(start < 0) {
+			return false;
+		}
+
+		mOutStart = start;
+		mOutLen = len - start;
+		return true;
+	}
+
+	private boolean flush(ByteBuffer outBuffer) {
+		if(outBuffer.remaining() < mOutLen) {
+			return false;
+		}
+
+		outBuffer.put(mParcel, mOutStart, mOutLen);
+		mOutLen = 0;
+		return true;
+	}
+
+	private int broken() {
+		mBroken = true;
+		mParcelLen = 0;
+		mOutLen = 0;
+		return Cipher.ERR_BROKEN;
+	}
+
+	private void ensure(int len) {
+		if(mParcel == null || mParcel.length < len) {
+			int n = mParcel == null?INIT_PARCEL:mParcel.length;
+			while(n < len) {
+				n <<= 1;
+			}
+
+			byte[] p = new byte[n > MAX_PARCEL?MAX_PARCEL:n];
+			if(mParcel != null && mParcelLen > 0) {
+				System.arraycopy(mParcel, 0, p, 0, mParcelLen);
+			}
+			mParcel = p;
+		}
+	}
+
+	private void copy(ByteBuffer src,int offset,int len) {
+		if(src.hasArray()) {
+			System.arraycopy(src.array(), src.arrayOffset()+offset, mParcel, mParcelLen, len);
+		}else {
+			ByteBuffer d = src.duplicate();
+			d.limit(offset+len);
+			d.position(offset);
+			d.get(mParcel, mParcelLen, len);
+		}
+		mParcelLen += len;
+	}
+}
@@ -0,0 +1,97 @@
+package com.chedifier.ladder.dns;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * bounded LRU cache of resolved addresses.
+ * failed lookups are kept as negative entries with a shorter ttl.
+ */
+public class DnsCache {
+	
+	private final int mCapacity;
+	private final long mTTL;
+	private final long mNegativeTTL;
+	private final LinkedHashMap<String, Entry> mEntries;
+	
+	private long mHits = 0L;
+	private long mNegativeHits = 0L;
+	private long mMisses = 0L;
+	
+	/**
+	 * 
+	 * @param capacity max entries kept
+	 * @param ttl milliseconds a resolved address keeps valid
+	 * @param negativeTTL milliseconds a failed lookup keeps valid
+	 */
+	public DnsCache(int capacity,long ttl,long negativeTTL) {
+		mCapacity = capacity;
+		mTTL = ttl;
+		mNegativeTTL = negativeTTL;
+		mEntries = new LinkedHashMap<String, Entry>(capacity > 16?capacity:16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest) {
+				return size() > mCapacity;
+			}
+		};
+	}
+	
+	/**
+	 * @param host
+	 * @return null if no valid entry, otherwise the entry whose address is null for a negative one.
+	 */
+	public synchronized Entry get(String host) {
+		Entry e = mEntries.get(host);
+		if(e != null && e.expireAt <= System.currentTimeMillis()) {
+			mEntries.remove(host);
+			e = null;
+		}
+		
+		if(e == null) {
+			++mMisses;
+		}else if(e.address == null) {
+			++mNegativeHits;
+		}else {
+			++mHits;
+		}
+		
+		return e;
+	}
+	
+	public synchronized void put(String host,InetAddress address) {
+		if(mCapacity <= 0) {
+			return;
+		}
+		
+		long ttl = address != null?mTTL:mNegativeTTL;
+		if(ttl <= 0) {
+			return;
+		}
+		
+		Entry e = new Entry();
+		e.address = address;
+		e.expireAt = System.currentTimeMillis() + ttl;
+		mEntries.put(host, e);
+	}
+	
+	public synchronized String dumpInfo() {
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("dns cache: size ").append(mEntries.size()).append("/").append(mCapacity)
+		.append(" , hits ").append(mHits)
+		.append(" , negative hits ").append(mNegativeHits)
+		.append(" , misses ").append(mMisses);
+		return sb.toString();
+	}
+	
+	public static final class Entry{
+		private InetAddress address;
+		private long expireAt;
+		
+		public InetAddress getAddress() {
+			return address;
+		}
+	}
+}
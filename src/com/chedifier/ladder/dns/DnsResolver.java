@@ -0,0 +1,205 @@
+package com.chedifier.ladder.dns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chedifier.ladder.base.ExceptionHandler;
+import com.chedifier.ladder.base.Log;
+
+/**
+ * resolve domain names on a bounded worker pool so that reactor threads never block on the system resolver.
+ * answers are cached by {@link DnsCache}, and concurrent lookups of one host share a single query.
+ * callbacks are invoked on the worker thread, callers are responsible for switching back to their own thread.
+ */
+public class DnsResolver {
+	private static final String TAG = "DnsResolver";
+	
+	private static final int DEFAULT_WORKERS = 8;
+	private static final int MAX_PENDING = 1024;
+	private static final int DEFAULT_CACHE_SIZE = 4096;
+	private static final long DEFAULT_TTL = 60*1000L;
+	private static final long DEFAULT_NEGATIVE_TTL = 5*1000L;
+	
+	private static ThreadPoolExecutor sExecutor = null;
+	private static DnsCache sCache = null;
+	private static boolean sInited = false;
+	
+	private static final Map<String, List<IResolveCallback>> sInFlight = new HashMap<>();
+	private static final AtomicLong sCoalesced = new AtomicLong(0L);
+	
+	private static final AtomicLong sRequests = new AtomicLong(0L);
+	private static final AtomicLong sFailures = new AtomicLong(0L);
+	private static final AtomicLong sRejected = new AtomicLong(0L);
+	private static final AtomicLong sTotalCost = new AtomicLong(0L);
+	private static final AtomicLong sMaxCost = new AtomicLong(0L);
+	
+	/**
+	 * 
+	 * @param workers resolver threads, default used if not positive
+	 * @param cacheSize max cached hosts, default used if negative, 0 disables the cache
+	 * @param ttl milliseconds a resolved address is cached, default used if not positive
+	 * @param negativeTTL milliseconds a failed lookup is cached, default used if negative
+	 */
+	public static synchronized void init(int workers,int cacheSize,long ttl,long negativeTTL) {
+		if(sInited) {
+			return;
+		}
+		
+		if(workers <= 0) {
+			workers = DEFAULT_WORKERS;
+		}
+		
+		sCache = new DnsCache(cacheSize < 0?DEFAULT_CACHE_SIZE:cacheSize, 
+				ttl <= 0?DEFAULT_TTL:ttl, negativeTTL < 0?DEFAULT_NEGATIVE_TTL:negativeTTL);
+		
+		final AtomicInteger serial = new AtomicInteger(0);
+		sExecutor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(MAX_PENDING), new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SProxy-dns-" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sExecutor.allowCoreThreadTimeOut(true);
+		sInited = true;
+	}
+	
+	/**
+	 * resolve host asynchronously.
+	 * @param host
+	 * @param callback invoked exactly once, on a resolver thread, or on the calling thread if answered by cache or rejected.
+	 */
+	public static void resolve(final String host,final IResolveCallback callback) {
+		if(!sInited) {
+			init(DEFAULT_WORKERS,DEFAULT_CACHE_SIZE,DEFAULT_TTL,DEFAULT_NEGATIVE_TTL);
+		}
+		
+		DnsCache.Entry cached = sCache.get(host);
+		if(cached != null) {
+			Log.d(TAG, "cache hit " + host);
+			callback.onResolved(host, cached.getAddress());
+			return;
+		}
+		
+		synchronized (sInFlight) {
+			List<IResolveCallback> waiters = sInFlight.get(host);
+			if(waiters != null) {
+				sCoalesced.incrementAndGet();
+				waiters.add(callback);
+				return;
+			}
+			
+			waiters = new ArrayList<IResolveCallback>(2);
+			waiters.add(callback);
+			sInFlight.put(host, waiters);
+		}
+		
+		sRequests.incrementAndGet();
+		final long start = System.currentTimeMillis();
+		try {
+			sExecutor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					InetAddress address = lookup(host);
+					onFinish(start, address != null);
+					sCache.put(host, address);
+					dispatch(host, address);
+				}
+			});
+		}catch(RejectedExecutionException e) {
+			Log.e(TAG, "too many pending resolve requests, reject " + host);
+			sRejected.incrementAndGet();
+			sFailures.incrementAndGet();
+			dispatch(host, null);
+		}
+	}
+	
+	private static void dispatch(String host,InetAddress address) {
+		List<IResolveCallback> waiters;
+		synchronized (sInFlight) {
+			waiters = sInFlight.remove(host);
+		}
+		
+		if(waiters != null) {
+			for(IResolveCallback c:waiters) {
+				c.onResolved(host, address);
+			}
+		}
+	}
+	
+	static InetAddress lookup(String host) {
+		try {
+			return InetAddress.getByName(host);
+		} catch (java.net.UnknownHostException e) {
+			Log.e(TAG, "unknown host " + host);
+		} catch (Throwable t) {
+			ExceptionHandler.handleException(t);
+		}
+		
+		return null;
+	}
+	
+	private static void onFinish(long start,boolean succ) {
+		long cost = System.currentTimeMillis() - start;
+		sTotalCost.addAndGet(cost);
+		if(!succ) {
+			sFailures.incrementAndGet();
+		}
+		
+		long max;
+		while(cost > (max = sMaxCost.get())) {
+			if(sMaxCost.compareAndSet(max, cost)) {
+				break;
+			}
+		}
+		
+		Log.d(TAG, "resolve cost " + cost + "ms " + (succ?"success":"failed"));
+	}
+	
+	public static void terminate() {
+		if(sExecutor != null) {
+			try {
+				sExecutor.shutdownNow();
+			}catch(Throwable t) {
+				ExceptionHandler.handleException(t);
+			}
+		}
+	}
+	
+	public static String dumpInfo() {
+		long requests = sRequests.get();
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("dns: requests ").append(requests)
+		.append(" , failures ").append(sFailures.get())
+		.append(" , rejected ").append(sRejected.get())
+		.append(" , avg cost ").append(requests > 0?sTotalCost.get()/requests:0).append("ms")
+		.append(" , max cost ").append(sMaxCost.get()).append("ms")
+		.append(" , coalesced ").append(sCoalesced.get());
+		if(sCache != null) {
+			sb.append("\n\r").append(sCache.dumpInfo());
+		}
+		return sb.toString();
+	}
+	
+	public interface IResolveCallback{
+		/**
+		 * @param host
+		 * @param address null if resolve failed.
+		 */
+		void onResolved(String host,InetAddress address);
+	}
+}
@@ -20,7 +20,8 @@ public enum Error {
 	E_S5_CHANNEL_DEAD(15,"channel dead"),
 	E_S5_SOCKET_ERROR_INIT(16,"init err"),
 	E_S5_SOCKET_PARCEL_NOT_FINISH(17,"uncomplete parcel"),
-	E_S5_EXTERNAL_CMD_CHECK_FAILED(18,"not external command");
+	E_S5_EXTERNAL_CMD_CHECK_FAILED(18,"not external command"),
+	E_S5_CONN_RESOLVE_FAILED(19,"resolve remote failed");
 	
 	private int type;
 	private String msg;
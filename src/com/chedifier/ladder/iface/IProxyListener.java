@@ -34,6 +34,7 @@ public interface IProxyListener {
 	
 	/**
 	 * params:int id,byte type,int speed
+	 * speed is smoothed bytes per second, type is one of {@link SPEEDTYPE}
 	 */
 	public static final int SPEED 			= 6;
 	
@@ -81,6 +82,18 @@ public interface IProxyListener {
 	 * params: long inUsing,long total
 	 */
 	public static final int MEMORY_INFO		= 15;
+	
+	/**
+	 * params: int id,long plain,long wire
+	 * bytes of relayed data encrypted so far and bytes they took on wire, wire/plain is the overhead ratio.
+	 */
+	public static final int WIRE_OVERHEAD	= 16;
+	
+	/**
+	 * params: int id,long bytes
+	 * bytes of buffer the connection holds now.
+	 */
+	public static final int RESIDENT_MEMORY	= 17;
 
 	Object onMessage(int msgId,Object... params);
 	
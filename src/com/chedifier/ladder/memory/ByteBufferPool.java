@@ -1,30 +1,51 @@
 package com.chedifier.ladder.memory;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-import com.chedifier.ladder.base.ExceptionHandler;
 import com.chedifier.ladder.base.Log;
-import com.chedifier.ladder.base.ObjectPool;
-import com.chedifier.ladder.base.ObjectPool.IConstructor;
+import com.chedifier.ladder.memory.SizeClass.Magazine;
 
+/**
+ * buffers by size class, heap or direct. obtain and recycle take no lock shared by all threads,
+ * each thread works on magazines of its own and trades full ones with a shared depot, see {@link SizeClass}.
+ * buffers rent out are kept weakly by identity in striped sets, so one recycled twice or not of obtain is told apart,
+ * and one never recycled is still collected by gc, and reported if sampled by {@link LeakDetector}.
+ */
 public class ByteBufferPool {
 	private static final String TAG = "ByteBufferPool";
 	
-	private static Map<Integer,ObjectPool<ByteBuffer>> sPool = new HashMap<>();
-	private static Set<Long> sInUsing = new HashSet<Long>();
-	private static Map<Long,MemInfo> sMemInfo = new HashMap<>();
-	
-	private static long sMemInUsing = 0L;
-	private static long sMemTotal = 0L;
 	private static final int[] CALIBRATION = new int[] {64, 128, 1<<8, 1<<9,1<<10,1<<11,1<<12,1<<13,1<<14, 1<<15, 1<<16, 1<<19};
 	
+	private static final SizeClass[] sClasses = new SizeClass[CALIBRATION.length];
+	private static final SizeClass[] sDirectClasses = new SizeClass[CALIBRATION.length];
+	static {
+		for(int i=0;i<CALIBRATION.length;i++) {
+			sClasses[i] = new SizeClass(CALIBRATION[i], false, i);
+			sDirectClasses[i] = new SizeClass(CALIBRATION[i], true, CALIBRATION.length + i);
+		}
+	}
+	
+	private static final ThreadLocal<Magazine[]> sMagazines = new ThreadLocal<Magazine[]>() {
+		@Override
+		protected Magazine[] initialValue() {
+			return new Magazine[CALIBRATION.length<<1];
+		}
+	};
+	
+	//buffers rent out, striped by low bits of identity hash so threads seldom meet on one stripe.
+	private static final int RENT_STRIPES = 64;
+	private static final RentStripe[] sRentOut = new RentStripe[RENT_STRIPES];
+	static {
+		for(int i=0;i<RENT_STRIPES;i++) {
+			sRentOut[i] = new RentStripe();
+		}
+	}
+	
 	private static List<IMemInfoListener> sMemListeners = new CopyOnWriteArrayList<>();
 	
 	public static void addListener(IMemInfoListener l) {
@@ -52,180 +73,229 @@ public class ByteBufferPool {
 		}
 	}
 	
-	private static int align(int size) {
+	private static int classOf(int size) {
 		if(size <= 0) {
-			return 0;
+			return -1;
 		}
 		
 		for(int i=0;i<CALIBRATION.length;i++) {
 			if(size <= CALIBRATION[i]) {
-				return CALIBRATION[i];
+				return i;
 			}
 		}
 		
-		return 0;
+		return -1;
 	}
 	
 	public static long getMemInUsing() {
-		return sMemInUsing;
+		return SizeClass.sMemInUsing.get();
 	}
 	
 	public static long getMemTotal() {
-		return sMemTotal;
+		return SizeClass.sMemTotal.get();
 	}
 	
-	public static synchronized ByteBuffer obtain(int size) {
-		final int fsize = align(size);
-		if(fsize <= 0) {
+	public static ByteBuffer obtain(int size) {
+		return obtain(size, false);
+	}
+	
+	/**
+	 * off-heap buffer, socket io on it needs no copy in jdk, but it has no {@link ByteBuffer#array()}.
+	 * recycle it by {@link #recycle(ByteBuffer)} as well.
+	 */
+	public static ByteBuffer obtainDirect(int size) {
+		return obtain(size, true);
+	}
+	
+	private static ByteBuffer obtain(int size,boolean direct) {
+		int c = classOf(size);
+		if(c < 0) {
 			Log.e(TAG, "wrong size " + size);
 			return null;
 		}
 		
-		ObjectPool<ByteBuffer> pool = sPool.get(fsize);
-		if(pool == null) {
-			pool = new ObjectPool<ByteBuffer>(new IConstructor<ByteBuffer>() {
-				@Override
-				public ByteBuffer newInstance(Object... params) {
-					sMemTotal += fsize;
-					sMemInUsing += fsize;
-					
-					return ByteBuffer.allocate(fsize);
-				}
-				
-				@Override
-				public void initialize(ByteBuffer e, Object... params) {
-					
-					e.clear();
-					sMemInUsing += fsize;
-				}
-			}, 100);
-			
-			sPool.put(fsize, pool);
-		}
-		
-		ByteBuffer buffer = pool.obtain();
-		onBufferRentOut(ExceptionHandler.getStackTraceString(new Throwable()), buffer);
-		
-		Log.i(TAG, "obtain: sMemTotal=" + sMemTotal + " sMemInPool="+sMemInUsing);
+		ByteBuffer buffer = (direct?sDirectClasses:sClasses)[c].obtain(sMagazines.get());
+		onBufferRentOut(buffer);
 		
 		return buffer;
 	}
 	
-	public static synchronized void recycle(ByteBuffer buffer) {
-		if(buffer != null) {
-			int size = buffer.capacity();
-			ObjectPool<ByteBuffer> pool = sPool.get(size);
-			if(pool != null) {
-				int r = pool.recycle(buffer);
-				if(r > 0) {
-					sMemInUsing -= size;
-					if(r == 2) {
-						sMemTotal -= size;
-					}
-					onBufferBack(buffer);
-				}
-			}
+	/**
+	 * a buffer not of {@link #obtain(int)}, or recycled already, is ignored.
+	 */
+	public static void recycle(ByteBuffer buffer) {
+		if(buffer == null) {
+			return;
+		}
+		
+		int size = buffer.capacity();
+		int c = classOf(size);
+		if(c < 0 || CALIBRATION[c] != size) {
+			return;
 		}
 		
-		Log.i(TAG, "recycle: sMemInPool="+sMemInUsing);
+		if(!giveBack(buffer)) {
+			Log.e(TAG, "recycle a buffer of " + size + " bytes not rent out, ignored.");
+			return;
+		}
+		
+		(buffer.isDirect()?sDirectClasses:sClasses)[c].recycle(sMagazines.get(), buffer);
+		onBufferBack(buffer);
 	}
 	
-	private static void onBufferRentOut(String user,ByteBuffer buffer) {
-//		Log.i(TAG, "onBufferRentOut " + user);
+	/**
+	 * track 1 in rate buffers obtained after, those not recycled are reported when collected,
+	 * and {@link #dumpInfo()} shows them by call site.
+	 * @param rate 0 off, 1 for all.
+	 */
+	public static void setLeakSampling(int rate) {
+		LeakDetector.setRate(rate);
+	}
+	
+	private static RentStripe stripeOf(ByteBuffer buffer) {
+		return sRentOut[System.identityHashCode(buffer)&(RENT_STRIPES - 1)];
+	}
+	
+	/**
+	 * @return false if the buffer is not rent out.
+	 */
+	private static boolean giveBack(ByteBuffer buffer) {
+		return stripeOf(buffer).remove(buffer);
+	}
+	
+	private static void onBufferRentOut(ByteBuffer buffer) {
 		if(buffer != null) {
-			long id = getByteBufferId(buffer);
-			MemInfo info = sMemInfo.get(id);
-			if(info == null) {
-				info = new MemInfo();
-				info.buffer = buffer;
-				sMemInfo.put(id, info);
-			}
-			info.owner = user;
-			
-			sInUsing.add(id);
-			
-			notify(sMemInUsing,sMemTotal);
+			stripeOf(buffer).add(buffer);
+			LeakDetector.onObtain(buffer);
+			notify(getMemInUsing(),getMemTotal());
 		}
 	}
 	
 	private static void onBufferBack(ByteBuffer buffer) {
-		long id = getByteBufferId(buffer);
-		sInUsing.remove(id);
-		sMemInfo.remove(id);
-		notify(sMemInUsing,sMemTotal);
-	}
-	
-	private static final long getByteBufferId(ByteBuffer buffer) {
-		return (long)System.identityHashCode(buffer);
+		if(LeakDetector.isTracking()) {
+			LeakDetector.onRecycle(buffer);
+		}
+		notify(getMemInUsing(),getMemTotal());
 	}
 	
-	public static synchronized String dumpInfo() {
+	public static String dumpInfo() {
 		StringBuilder sb = new StringBuilder(2048);
 		sb.append("pool info: \n");
 		long poolSize = 0;
-		Iterator<Map.Entry<Integer,ObjectPool<ByteBuffer>>> itr = sPool.entrySet().iterator();
-		while(itr.hasNext()) {
-			Map.Entry<Integer,ObjectPool<ByteBuffer>> entry = itr.next();
-			int bufferSize = entry.getKey();
-			int bufferNum = entry.getValue().getPoolSize();
-			sb.append(bufferSize).append(": ").append(bufferNum).append("\n");
-			poolSize += (bufferSize*bufferNum);
+		for(int i=0;i<CALIBRATION.length<<1;i++) {
+			SizeClass sc = i < CALIBRATION.length?sClasses[i]:sDirectClasses[i - CALIBRATION.length];
+			long bufferNum = sc.getTotal() - sc.getInUsing();
+			if(bufferNum <= 0) {
+				continue;
+			}
+			sb.append(sc.mSize).append(sc.mDirect?"(direct): ":": ").append(bufferNum).append("\n");
+			poolSize += (sc.mSize*bufferNum);
 		}
 		
-		sb.append("meminfo in using: \n");
-		Iterator<Long> itr2 = sInUsing.iterator();
-		Map<String,Long> usage = new HashMap<>();
-		while(itr2.hasNext()) {
-			long id = itr2.next();
-			MemInfo memInfo = sMemInfo.get(id);
-			ByteBuffer buffer = null;
-			String owner = null;
-			if(memInfo != null) {
-				if(memInfo.owner == null) {					
-					Log.i(TAG, "memInfo " + memInfo.owner);
-				}
-				owner = memInfo.owner;
-				buffer = memInfo.buffer;
-			}else {
-				Log.i(TAG, "memInfo is null.");
+		long inUsing = getMemInUsing();
+		LeakDetector.dump(sb);
+		
+		sb.append(poolSize).append(" bytes in pool,").append(inUsing).append(" bytes in using,").append(" total: ").append(poolSize+inUsing).append(" bytes.");	
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * weak identity set of buffers, chained by identity hash above the bits of stripe.
+	 * entries cleared by gc are expunged on next add or remove.
+	 */
+	private static final class RentStripe {
+		private final ReferenceQueue<ByteBuffer> mQueue = new ReferenceQueue<>();
+		private RentRef[] mTable = new RentRef[16];
+		private int mSize = 0;
+
+		synchronized void add(ByteBuffer buffer) {
+			expunge();
+			if(mSize >= mTable.length - (mTable.length>>2)) {
+				resize();
 			}
-			if(owner == null) {
-				owner = "unknown";
+
+			int h = hashOf(buffer);
+			int i = h&(mTable.length - 1);
+			RentRef r = new RentRef(buffer, h, mQueue);
+			r.mNext = mTable[i];
+			mTable[i] = r;
+			++mSize;
+		}
+
+		/**
+		 * @return false if not in set.
+		 */
+		synchronized boolean remove(ByteBuffer buffer) {
+			expunge();
+			int i = hashOf(buffer)&(mTable.length - 1);
+			RentRef prev = null;
+			for(RentRef r = mTable[i];r != null;prev = r,r = r.mNext) {
+				if(r.get() == buffer) {
+					unlink(r, prev, i);
+					r.clear();
+					return true;
+				}
 			}
-			
-			if(buffer == null) {
-				Log.e(TAG, "buffer is NULL");
-				continue;
+
+			return false;
+		}
+
+		private void expunge() {
+			RentRef r;
+			while((r = (RentRef)mQueue.poll()) != null) {
+				int i = r.mHash&(mTable.length - 1);
+				RentRef prev = null;
+				for(RentRef t = mTable[i];t != null;prev = t,t = t.mNext) {
+					if(t == r) {
+						unlink(r, prev, i);
+						break;
+					}
+				}
 			}
-			
-			Long size = usage.get(owner);
-			if(size == null) {
-				usage.put(owner, (long)buffer.capacity());
+		}
+
+		private void unlink(RentRef r,RentRef prev,int i) {
+			if(prev != null) {
+				prev.mNext = r.mNext;
 			}else {
-				size+=buffer.capacity();
-				usage.put(owner, size);
+				mTable[i] = r.mNext;
 			}
+			r.mNext = null;
+			--mSize;
 		}
-		
-		Iterator<Map.Entry<String, Long>> itr3 = usage.entrySet().iterator();
-		long inUsing = 0L;
-		while(itr3.hasNext()) {
-			Map.Entry<String,Long> entry = itr3.next();
-			sb.append(entry.getKey()).append("\n").append(" >>>> hold >>>> ").append(entry.getValue()).append(" bytes\n");
-			inUsing += entry.getValue();
+
+		private void resize() {
+			RentRef[] old = mTable;
+			mTable = new RentRef[old.length<<1];
+			for(int j=0;j<old.length;j++) {
+				RentRef r = old[j];
+				while(r != null) {
+					RentRef next = r.mNext;
+					int i = r.mHash&(mTable.length - 1);
+					r.mNext = mTable[i];
+					mTable[i] = r;
+					r = next;
+				}
+			}
+		}
+
+		private static int hashOf(ByteBuffer buffer) {
+			return System.identityHashCode(buffer)>>>6;
+		}
+	}
+
+	private static final class RentRef extends WeakReference<ByteBuffer> {
+		private final int mHash;
+		private RentRef mNext;
+
+		private RentRef(ByteBuffer buffer,int hash,ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			mHash = hash;
 		}
-		
-		sb.append(poolSize).append(" bytes in pool,").append(inUsing).append(" bytes in using,").append(" total: ").append(poolSize+inUsing).append(" bytes.");	
-		
-		return sb.toString();
 	}
 	
 	public interface IMemInfoListener{
 		void onMemoryInfo(long inUsing,long total);
 	}
-	
-	private static class MemInfo{
-		public String owner;
-		public ByteBuffer buffer;
-	}
 }
@@ -0,0 +1,184 @@
+package com.chedifier.ladder.memory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.chedifier.ladder.base.Log;
+
+/**
+ * tracks a sample of buffers rent out by {@link ByteBufferPool}.
+ * a sampled buffer gets a weak handle with its call site, recycling it drops the handle,
+ * a handle cleared by gc before that is a buffer never given back, reported as leaked.
+ * buffers not sampled are not known here at all.
+ */
+final class LeakDetector {
+
+	private static final String TAG = "LeakDetector";
+
+	//frames of the call site kept as its key.
+	private static final int SITE_DEPTH = 6;
+
+	//0 off, or 1 in rate buffers sampled.
+	private static volatile int sRate = 0;
+
+	//handles not yet dropped, sampled buffers still out may be recycled after sampling is off.
+	private static volatile int sTracking = 0;
+
+	private static final ReferenceQueue<ByteBuffer> sQueue = new ReferenceQueue<>();
+
+	//handles by identity hash of buffer, chained on collision.
+	private static final Map<Integer,Handle> sHandles = new HashMap<>();
+	private static final Map<String,Site> sSites = new HashMap<>();
+
+	static void setRate(int rate) {
+		sRate = rate < 0?0:rate;
+	}
+
+	static boolean isTracking() {
+		return sRate > 0 || sTracking > 0;
+	}
+
+	static void onObtain(ByteBuffer buffer) {
+		int rate = sRate;
+		if(rate <= 0 || buffer == null) {
+			return;
+		}
+
+		poll();
+		if(rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+			return;
+		}
+
+		String key = callSite(new Throwable().getStackTrace());
+		int id = System.identityHashCode(buffer);
+		synchronized (sHandles) {
+			Site site = sSites.get(key);
+			if(site == null) {
+				site = new Site(key);
+				sSites.put(key, site);
+			}
+
+			Handle h = new Handle(buffer, site, id);
+			h.mNext = sHandles.put(id, h);
+			++site.mLive;
+			site.mLiveBytes += h.mSize;
+			++site.mSampled;
+			++sTracking;
+		}
+	}
+
+	static void onRecycle(ByteBuffer buffer) {
+		int id = System.identityHashCode(buffer);
+		synchronized (sHandles) {
+			Handle prev = null;
+			for(Handle h = sHandles.get(id);h != null;prev = h,h = h.mNext) {
+				if(h.get() == buffer) {
+					unlink(h, prev);
+					h.clear();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * report handles cleared without being recycled.
+	 */
+	static void poll() {
+		Handle h;
+		while((h = (Handle)sQueue.poll()) != null) {
+			synchronized (sHandles) {
+				if(!h.mDropped) {
+					Handle prev = null;
+					for(Handle t = sHandles.get(h.mId);t != null;prev = t,t = t.mNext) {
+						if(t == h) {
+							unlink(h, prev);
+							++h.mSite.mLeaked;
+							Log.e(TAG, "buffer of " + h.mSize + " bytes leaked, obtained at\n" + h.mSite.mKey);
+							break;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	static void dump(StringBuilder sb) {
+		poll();
+		int rate = sRate;
+		sb.append("sampled by call site (").append(rate > 0?"1 in " + rate:"off").append("): \n");
+		synchronized (sHandles) {
+			Iterator<Site> itr = sSites.values().iterator();
+			while(itr.hasNext()) {
+				Site site = itr.next();
+				sb.append(site.mKey).append("\n")
+				.append(" >>>> hold >>>> ").append(site.mLive).append(" buffers, ").append(site.mLiveBytes).append(" bytes")
+				.append(", sampled ").append(site.mSampled).append(", leaked ").append(site.mLeaked).append("\n");
+			}
+		}
+	}
+
+	//called with sHandles held, prev is the one chained before h.
+	private static void unlink(Handle h,Handle prev) {
+		if(prev != null) {
+			prev.mNext = h.mNext;
+		}else if(h.mNext != null) {
+			sHandles.put(h.mId, h.mNext);
+		}else if(sHandles.get(h.mId) == h) {
+			sHandles.remove(h.mId);
+		}
+
+		h.mDropped = true;
+		--h.mSite.mLive;
+		h.mSite.mLiveBytes -= h.mSize;
+		--sTracking;
+	}
+
+	private static String callSite(StackTraceElement[] frames) {
+		StringBuilder sb = new StringBuilder(256);
+		int n = 0;
+		for(int i=0;i<frames.length && n < SITE_DEPTH;i++) {
+			String cls = frames[i].getClassName();
+			if(cls.equals(LeakDetector.class.getName()) || cls.equals(ByteBufferPool.class.getName())) {
+				continue;
+			}
+
+			sb.append(n == 0?"":"\n").append("\tat ").append(frames[i]);
+			++n;
+		}
+
+		return sb.toString();
+	}
+
+	private static final class Handle extends WeakReference<ByteBuffer> {
+		private final Site mSite;
+		private final int mSize;
+		private final int mId;
+		private Handle mNext;
+		private boolean mDropped = false;
+
+		private Handle(ByteBuffer buffer,Site site,int id) {
+			super(buffer, sQueue);
+			mSite = site;
+			mSize = buffer.capacity();
+			mId = id;
+		}
+	}
+
+	private static final class Site {
+		private final String mKey;
+		private long mLive = 0;
+		private long mLiveBytes = 0;
+		private long mSampled = 0;
+		private long mLeaked = 0;
+
+		private Site(String key) {
+			mKey = key;
+		}
+	}
+}
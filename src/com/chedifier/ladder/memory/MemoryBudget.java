@@ -0,0 +1,121 @@
+package com.chedifier.ladder.memory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chedifier.ladder.base.Log;
+
+/**
+ * ceiling of buffer memory rent out by {@link ByteBufferPool}, heap and direct together.
+ * above the high watermark memory is under pressure, new connections wait and the heaviest readers pause,
+ * it ends only below the low watermark, so they do not flip on every buffer.
+ * nothing is refused, a buffer asked for is always given, the budget only holds back what asks for more.
+ */
+public class MemoryBudget {
+
+	private static final String TAG = "MemoryBudget";
+
+	public static final int DEFAULT_HIGH = 90;
+	public static final int DEFAULT_LOW = 75;
+
+	//bytes, 0 for no limit.
+	private static volatile long sLimit = 0L;
+	private static volatile long sHigh = 0L;
+	private static volatile long sLow = 0L;
+
+	private static final AtomicBoolean sPressured = new AtomicBoolean(false);
+
+	private static final AtomicLong sPressureTimes = new AtomicLong(0L);
+	private static final AtomicLong sDeferredAccepts = new AtomicLong(0L);
+	private static final AtomicLong sPausedReads = new AtomicLong(0L);
+	private static final AtomicLong sResumedReads = new AtomicLong(0L);
+
+	/**
+	 * @param limit bytes, 0 for no limit.
+	 * @param high percent of limit memory comes under pressure at.
+	 * @param low percent of limit the pressure ends at, below high.
+	 */
+	public static void configure(long limit,int high,int low) {
+		if(high <= 0 || high > 100) {
+			high = DEFAULT_HIGH;
+		}
+		if(low <= 0 || low >= high) {
+			low = Math.min(DEFAULT_LOW, high - 1);
+		}
+
+		sHigh = limit/100*high;
+		sLow = limit/100*low;
+		sLimit = limit < 0?0:limit;
+		if(sLimit <= 0) {
+			sPressured.set(false);
+		}
+
+		Log.i(TAG, "configure limit " + sLimit + " high " + sHigh + " low " + sLow);
+	}
+
+	public static long getLimit() {
+		return sLimit;
+	}
+
+	/**
+	 * whether memory is under pressure, updated by memory in using.
+	 */
+	public static boolean isPressured() {
+		if(sLimit <= 0) {
+			return false;
+		}
+
+		long using = ByteBufferPool.getMemInUsing();
+		if(sPressured.get()) {
+			if(using <= sLow && sPressured.compareAndSet(true, false)) {
+				Log.i(TAG, "pressure off, using " + using);
+			}
+		}else if(using >= sHigh && sPressured.compareAndSet(false, true)) {
+			sPressureTimes.incrementAndGet();
+			Log.i(TAG, "pressure on, using " + using);
+		}
+
+		return sPressured.get();
+	}
+
+	public static void onAcceptDeferred() {
+		sDeferredAccepts.incrementAndGet();
+	}
+
+	public static void onReadPaused() {
+		sPausedReads.incrementAndGet();
+	}
+
+	public static void onReadResumed() {
+		sResumedReads.incrementAndGet();
+	}
+
+	public static long getPressureTimes() {
+		return sPressureTimes.get();
+	}
+
+	public static long getDeferredAccepts() {
+		return sDeferredAccepts.get();
+	}
+
+	public static long getPausedReads() {
+		return sPausedReads.get();
+	}
+
+	public static long getResumedReads() {
+		return sResumedReads.get();
+	}
+
+	public static String dumpInfo() {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("memory budget: limit ").append(sLimit)
+		.append(" , high ").append(sHigh)
+		.append(" , low ").append(sLow)
+		.append(" , pressured ").append(sPressured.get())
+		.append(" , pressure times ").append(sPressureTimes.get())
+		.append(" , deferred accepts ").append(sDeferredAccepts.get())
+		.append(" , paused reads ").append(sPausedReads.get())
+		.append(" , resumed reads ").append(sResumedReads.get());
+		return sb.toString();
+	}
+}
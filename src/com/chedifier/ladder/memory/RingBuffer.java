@@ -0,0 +1,480 @@
+package com.chedifier.ladder.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * byte stream over a {@link ByteBuffer}, read and write cursors go round instead of the data being compacted,
+ * so consuming or writing out part of the data moves no byte.
+ * data is [read,write), or [read,end) followed by [0,write) once wrapped,
+ * both halves are handed to {@link GatheringByteChannel#write(ByteBuffer[], int, int)}
+ * and the free room to {@link ScatteringByteChannel#read(ByteBuffer[], int, int)} in one call.
+ * {@link #writeView(int)} may wrap early for a contiguous room, the tail skipped is free again once read passes it.
+ * the buffer behind is taken from {@link ByteBufferPool} on first write, small, and moved to a larger size class
+ * when data does not fit, or a read fills it, up to the capacity. {@link #shrink()} gives it back.
+ * so free room and capacity are of the largest buffer, what is held is {@link #resident()}.
+ * views returned are reused by the next call, and invalid once the buffer moves. not thread safe.
+ */
+public class RingBuffer {
+
+	private static final int MIN_CAPACITY = 4<<10;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final int mMaxCapacity;
+	private final boolean mDirect;
+
+	private ByteBuffer mBuffer;
+	private int mCapacity = 0;
+	//count of buffer moves, views of an older buffer are to be made again.
+	private int mGeneration = 0;
+	//last read filled all room, bulk data, the next read gets a larger buffer.
+	private boolean mReadFilled = false;
+
+	private int mRead = 0;
+	private int mWrite = 0;
+	private int mEnd = 0;
+	private boolean mWrapped = false;
+
+	private final ByteBuffer[] mReadViews = new ByteBuffer[2];
+	private final ByteBuffer[] mWriteViews = new ByteBuffer[2];
+
+	/**
+	 * @param capacity the most data it may hold.
+	 * @param direct buffers off heap.
+	 */
+	public RingBuffer(int capacity,boolean direct) {
+		mMaxCapacity = capacity;
+		mDirect = direct;
+	}
+
+	public int capacity() {
+		return mMaxCapacity;
+	}
+
+	/**
+	 * @return bytes of buffer held now.
+	 */
+	public int resident() {
+		return mCapacity;
+	}
+
+	/**
+	 * @return changes each time the buffer moves.
+	 */
+	public int generation() {
+		return mGeneration;
+	}
+
+	/**
+	 * @return bytes of data.
+	 */
+	public int size() {
+		return mWrapped?mEnd - mRead + mWrite:mWrite - mRead;
+	}
+
+	/**
+	 * @return bytes of room, the tail skipped by an early wrap not counted.
+	 */
+	public int free() {
+		if(mCapacity < mMaxCapacity) {
+			return mMaxCapacity - size();
+		}
+
+		return mWrapped?mRead - mWrite:mCapacity - mWrite + mRead;
+	}
+
+	public boolean isEmpty() {
+		return size() <= 0;
+	}
+
+	public boolean isDirect() {
+		return mDirect;
+	}
+
+	/**
+	 * @return the largest contiguous room {@link #writeView(int)} may give.
+	 */
+	public int writable() {
+		if(mCapacity < mMaxCapacity) {
+			return mMaxCapacity - size();
+		}
+
+		if(mWrapped) {
+			return mRead - mWrite;
+		}
+
+		return mRead == mWrite?mCapacity:Math.max(mCapacity - mWrite, mRead);
+	}
+
+	/**
+	 * first contiguous part of data, from position to limit. consume by {@link #skip(int)}.
+	 */
+	public ByteBuffer readView() {
+		if(mBuffer == null) {
+			return EMPTY;
+		}
+
+		ByteBuffer v = mReadViews[0];
+		v.limit(mWrapped?mEnd:mWrite);
+		v.position(mRead);
+		return v;
+	}
+
+	/**
+	 * contiguous room from position to limit, of need bytes if it can be had, otherwise the largest.
+	 * put into it and {@link #commitWrite(int)}.
+	 */
+	public ByteBuffer writeView(int need) {
+		if(contiguous() < need && mCapacity < mMaxCapacity) {
+			grow(size() + need);
+		}
+
+		int start, end;
+		if(mWrapped) {
+			start = mWrite;
+			end = mRead;
+		}else {
+			if(mRead == mWrite) {
+				mRead = mWrite = 0;
+			}
+
+			int tail = mCapacity - mWrite;
+			if(tail >= need || tail >= mRead) {
+				start = mWrite;
+				end = mCapacity;
+			}else {
+				mEnd = mWrite;
+				mWrite = 0;
+				mWrapped = true;
+				start = 0;
+				end = mRead;
+			}
+		}
+
+		ByteBuffer v = mWriteViews[0];
+		v.limit(end);
+		v.position(start);
+		return v;
+	}
+
+	/**
+	 * len bytes have been put to the view of {@link #writeView(int)}.
+	 */
+	public void commitWrite(int len) {
+		if(len > 0) {
+			mWrite += len;
+		}
+	}
+
+	/**
+	 * consume len bytes of data.
+	 * @return bytes consumed
+	 */
+	public int skip(int len) {
+		int size = size();
+		if(len > size) {
+			len = size;
+		}
+
+		if(len <= 0) {
+			return 0;
+		}
+
+		int first = (mWrapped?mEnd:mWrite) - mRead;
+		if(len < first) {
+			mRead += len;
+		}else if(mWrapped) {
+			mRead = len - first;
+			mWrapped = false;
+		}else {
+			mRead = mWrite;
+		}
+
+		if(!mWrapped && mRead == mWrite) {
+			mRead = mWrite = 0;
+		}
+
+		return len;
+	}
+
+	public void clear() {
+		mRead = mWrite = mEnd = 0;
+		mWrapped = false;
+	}
+
+	/**
+	 * copy as much of src as room allows.
+	 * @return bytes put
+	 */
+	public int put(ByteBuffer src) {
+		int n = 0;
+		while(src.hasRemaining() && free() > 0) {
+			ByteBuffer v = writeView(1);
+			int l = Math.min(v.remaining(), src.remaining());
+			int limit = src.limit();
+			src.limit(src.position() + l);
+			v.put(src);
+			src.limit(limit);
+			commitWrite(l);
+			n += l;
+		}
+
+		return n;
+	}
+
+	/**
+	 * move at most len bytes of data to dest.
+	 * @return bytes moved
+	 */
+	public int get(ByteBuffer dest,int len) {
+		int n = 0;
+		len = Math.min(Math.min(len, size()), dest.remaining());
+		while(n < len) {
+			ByteBuffer v = readView();
+			if(v.remaining() > len - n) {
+				v.limit(v.position() + len - n);
+			}
+			int l = v.remaining();
+			dest.put(v);
+			skip(l);
+			n += l;
+		}
+
+		return n;
+	}
+
+	/**
+	 * scattering read into all the room.
+	 * @return as {@link ScatteringByteChannel#read(ByteBuffer[], int, int)}
+	 */
+	public int readFrom(ScatteringByteChannel channel) throws IOException {
+		if(mCapacity < mMaxCapacity && (mReadFilled || mBuffer == null || mCapacity - size() <= 0)) {
+			grow(mCapacity<<1);
+		}
+
+		if(!mWrapped && mRead == mWrite) {
+			mRead = mWrite = 0;
+		}
+
+		int n = 0;
+		if(mWrapped) {
+			n = view(mWriteViews, n, mWrite, mRead);
+		}else {
+			n = view(mWriteViews, n, mWrite, mCapacity);
+			n = view(mWriteViews, n, 0, mRead);
+		}
+
+		if(n <= 0) {
+			return 0;
+		}
+
+		int room = mWrapped?mRead - mWrite:mCapacity - mWrite + mRead;
+		int r = (int)channel.read(mWriteViews, 0, n);
+		mReadFilled = r >= room;
+		if(r > 0) {
+			int tail = mCapacity - mWrite;
+			if(mWrapped || r <= tail) {
+				mWrite += r;
+			}else {
+				mEnd = mCapacity;
+				mWrite = r - tail;
+				mWrapped = true;
+			}
+		}
+
+		return r;
+	}
+
+	/**
+	 * gathering write of all the data, what is written is consumed.
+	 * @return as {@link GatheringByteChannel#write(ByteBuffer[], int, int)}
+	 */
+	public int writeTo(GatheringByteChannel channel) throws IOException {
+		if(mBuffer == null) {
+			return 0;
+		}
+
+		int n = 0;
+		if(mWrapped) {
+			n = view(mReadViews, n, mRead, mEnd);
+			n = view(mReadViews, n, 0, mWrite);
+		}else {
+			n = view(mReadViews, n, mRead, mWrite);
+		}
+
+		if(n <= 0) {
+			return 0;
+		}
+
+		int w = (int)channel.write(mReadViews, 0, n);
+		skip(w);
+		return w;
+	}
+
+	/**
+	 * @return a view for {@link #slice(int, int, ByteBuffer)}, to be kept by the caller until {@link #generation()} changes.
+	 */
+	public ByteBuffer newView() {
+		return mBuffer == null?EMPTY.duplicate():mBuffer.duplicate();
+	}
+
+	/**
+	 * set view to the data from offset after the read cursor, as much of len as is contiguous.
+	 * @param view from {@link #newView()}
+	 * @return bytes of data the view covers, 0 if offset is past the data.
+	 */
+	public int slice(int offset,int len,ByteBuffer view) {
+		int first = (mWrapped?mEnd:mWrite) - mRead;
+		int start, end;
+		if(offset < first) {
+			start = mRead + offset;
+			end = mRead + first;
+		}else if(mWrapped) {
+			start = offset - first;
+			end = mWrite;
+		}else {
+			return 0;
+		}
+
+		if(end - start > len) {
+			end = start + len;
+		}
+
+		if(end <= start) {
+			return 0;
+		}
+
+		view.limit(end);
+		view.position(start);
+		return end - start;
+	}
+
+	/**
+	 * make data contiguous and give it from index 0 to position, for parsing handshake messages.
+	 * moves data only if wrapped. the buffer returned is valid until data changes.
+	 */
+	public ByteBuffer linear() {
+		if(mBuffer == null) {
+			return EMPTY;
+		}
+
+		if(mWrapped) {
+			byte[] t = new byte[size()];
+			ByteBuffer d = ByteBuffer.wrap(t);
+			get(d, t.length);
+			clear();
+			ByteBuffer v = writeView(t.length);
+			v.put(t);
+			commitWrite(t.length);
+		}
+
+		ByteBuffer d = mBuffer.duplicate();
+		d.limit(mWrite);
+		d.position(mRead);
+		ByteBuffer s = d.slice();
+		s.position(s.limit());
+		return s;
+	}
+
+	/**
+	 * move data to the smallest buffer it fits, or give the buffer back to pool if empty.
+	 * @return bytes of buffer given back.
+	 */
+	public int shrink() {
+		int old = mCapacity;
+		if(isEmpty()) {
+			release();
+		}else if(sizeClass(size()) < mCapacity) {
+			move(sizeClass(size()));
+		}
+
+		return old - mCapacity;
+	}
+
+	/**
+	 * give the buffer back to pool, data is dropped. a later write takes a new one.
+	 */
+	public void release() {
+		if(mBuffer != null) {
+			ByteBufferPool.recycle(mBuffer);
+			mBuffer = null;
+			mCapacity = 0;
+			++mGeneration;
+		}
+		clear();
+		mReadFilled = false;
+	}
+
+	//largest contiguous room without moving the buffer.
+	private int contiguous() {
+		if(mBuffer == null) {
+			return 0;
+		}
+
+		if(mWrapped) {
+			return mRead - mWrite;
+		}
+
+		return mRead == mWrite?mCapacity:Math.max(mCapacity - mWrite, mRead);
+	}
+
+	private int sizeClass(int len) {
+		int c = MIN_CAPACITY;
+		while(c < len && c < mMaxCapacity) {
+			c <<= 1;
+		}
+
+		return Math.min(c, mMaxCapacity);
+	}
+
+	//to the class len fits, at least the next one.
+	private void grow(int len) {
+		int c = Math.max(sizeClass(len), Math.min(mCapacity<<1, mMaxCapacity));
+		if(c > mCapacity) {
+			move(c);
+		}
+	}
+
+	//data goes to a new buffer of capacity c from index 0.
+	private void move(int c) {
+		ByteBuffer buffer = mDirect?ByteBufferPool.obtainDirect(c):ByteBufferPool.obtain(c);
+		if(buffer == null) {
+			return;
+		}
+
+		int size = size();
+		if(mBuffer != null) {
+			get(buffer, size);
+			ByteBufferPool.recycle(mBuffer);
+		}
+
+		mBuffer = buffer;
+		mCapacity = c;
+		mRead = 0;
+		mWrite = size;
+		mEnd = 0;
+		mWrapped = false;
+		for(int i=0;i<2;i++) {
+			mReadViews[i] = buffer.duplicate();
+			mWriteViews[i] = buffer.duplicate();
+		}
+		++mGeneration;
+	}
+
+	private static int view(ByteBuffer[] views,int n,int start,int end) {
+		if(end > start) {
+			views[n].limit(end);
+			views[n].position(start);
+			return n + 1;
+		}
+
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return "RingBuffer[size=" + size() + " free=" + free() + " resident=" + mCapacity + " cap=" + mMaxCapacity + "]";
+	}
+}
@@ -0,0 +1,165 @@
+package com.chedifier.ladder.memory;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * free buffers of one size, heap or direct.
+ * each thread obtains from and recycles to its own magazine without lock. a full magazine goes to the depot,
+ * shared by all threads and lock-free, an empty one is refilled from it, so threads meet only once a magazine.
+ * magazines of threads died are reaped when a thread makes its first one, their buffers dropped.
+ */
+final class SizeClass {
+
+	//bytes a magazine may hold, it holds 2 to 32 buffers.
+	private static final int MAGAZINE_BYTES = 256<<10;
+	private static final int MIN_MAGAZINE = 2;
+	private static final int MAX_MAGAZINE = 32;
+
+	//free buffers kept in depot, as the pool of a size kept before.
+	private static final int DEPOT_BUFFERS = 100;
+
+	//bytes of all classes rent out, and allocated and not dropped.
+	static final AtomicLong sMemInUsing = new AtomicLong(0L);
+	static final AtomicLong sMemTotal = new AtomicLong(0L);
+
+	final int mSize;
+	final boolean mDirect;
+
+	//slot of the magazine in the array each thread has.
+	final int mSlot;
+
+	private final int mMagazineSize;
+	private final int mDepotLimit;
+	private final ConcurrentLinkedQueue<ByteBuffer[]> mDepot = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger mDepotSize = new AtomicInteger(0);
+	
+	//magazines of all threads, to find those of threads died.
+	private final ConcurrentLinkedQueue<Magazine> mMagazines = new ConcurrentLinkedQueue<>();
+
+	//buffers created and not dropped, and those rent out. summed only for dump.
+	private final LongAdder mTotal = new LongAdder();
+	private final LongAdder mInUsing = new LongAdder();
+
+	SizeClass(int size,boolean direct,int slot) {
+		mSize = size;
+		mDirect = direct;
+		mSlot = slot;
+		mMagazineSize = Math.max(MIN_MAGAZINE, Math.min(MAX_MAGAZINE, MAGAZINE_BYTES/size));
+		mDepotLimit = Math.max(1, DEPOT_BUFFERS/mMagazineSize);
+	}
+
+	ByteBuffer obtain(Magazine[] magazines) {
+		Magazine m = magazine(magazines);
+		if(m.mCount <= 0) {
+			ByteBuffer[] full = mDepot.poll();
+			if(full != null) {
+				mDepotSize.decrementAndGet();
+				m.mSpare = m.mItems;
+				m.mItems = full;
+				m.mCount = full.length;
+			}
+		}
+
+		ByteBuffer buffer;
+		if(m.mCount > 0) {
+			buffer = m.mItems[--m.mCount];
+			m.mItems[m.mCount] = null;
+			buffer.clear();
+		}else {
+			buffer = mDirect?ByteBuffer.allocateDirect(mSize):ByteBuffer.allocate(mSize);
+			mTotal.increment();
+			sMemTotal.addAndGet(mSize);
+		}
+
+		mInUsing.increment();
+		sMemInUsing.addAndGet(mSize);
+		return buffer;
+	}
+
+	/**
+	 * @return 1 if kept for reuse, 2 if dropped as the depot is full.
+	 */
+	int recycle(Magazine[] magazines,ByteBuffer buffer) {
+		mInUsing.decrement();
+		sMemInUsing.addAndGet(-mSize);
+		Magazine m = magazine(magazines);
+		if(m.mCount >= m.mItems.length) {
+			if(mDepotSize.get() >= mDepotLimit) {
+				mTotal.decrement();
+				sMemTotal.addAndGet(-mSize);
+				return 2;
+			}
+
+			mDepotSize.incrementAndGet();
+			mDepot.offer(m.mItems);
+			m.mItems = m.mSpare != null?m.mSpare:new ByteBuffer[mMagazineSize];
+			m.mSpare = null;
+			m.mCount = 0;
+		}
+
+		m.mItems[m.mCount++] = buffer;
+		return 1;
+	}
+
+	long getTotal() {
+		return mTotal.sum();
+	}
+
+	long getInUsing() {
+		return mInUsing.sum();
+	}
+
+	private Magazine magazine(Magazine[] magazines) {
+		Magazine m = magazines[mSlot];
+		if(m == null) {
+			reap();
+			m = new Magazine(mMagazineSize);
+			magazines[mSlot] = m;
+			mMagazines.offer(m);
+		}
+
+		return m;
+	}
+
+	/**
+	 * drop magazines whose thread has died, no one else would take their buffers.
+	 * the death of a thread happens before isAlive() sees it, so its magazine is safe to read here.
+	 */
+	private void reap() {
+		Iterator<Magazine> itr = mMagazines.iterator();
+		while(itr.hasNext()) {
+			Magazine m = itr.next();
+			Thread owner = m.mOwner.get();
+			if(owner != null && owner.isAlive()) {
+				continue;
+			}
+
+			itr.remove();
+			if(m.mCount > 0) {
+				mTotal.add(-m.mCount);
+				sMemTotal.addAndGet(-(long)m.mCount*mSize);
+				m.mCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * free buffers of one thread, owned by it.
+	 */
+	static final class Magazine {
+		private final WeakReference<Thread> mOwner = new WeakReference<Thread>(Thread.currentThread());
+		private ByteBuffer[] mItems;
+		private ByteBuffer[] mSpare;
+		private int mCount = 0;
+
+		private Magazine(int size) {
+			mItems = new ByteBuffer[size];
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.chedifier.ladder.socks5;
 
+import java.nio.ByteBuffer;
+
 import com.chedifier.ladder.base.Log;
 import com.chedifier.ladder.base.NetUtils;
 import com.chedifier.ladder.iface.Error;
@@ -44,11 +46,27 @@ public abstract class AbsS5Stage implements IChannelEvent{
 	}
 	
 	protected int getSrcInDataSize() {
-		return getChannel().getSrcInBuffer().position();
+		return getChannel().getSrcInDataSize();
 	}
 	
 	protected int getDestInData() {
-		return getChannel().getDestInBuffer().position();
+		return getChannel().getDestInDataSize();
+	}
+	
+	/**
+	 * bytes before position of buffer, a copy only if buffer is not backed by an array.
+	 * for parsing handshake messages.
+	 */
+	protected static byte[] bytesOf(ByteBuffer buffer) {
+		if(buffer.hasArray() && buffer.arrayOffset() == 0) {
+			return buffer.array();
+		}
+		
+		byte[] data = new byte[buffer.position()];
+		ByteBuffer d = buffer.duplicate();
+		d.flip();
+		d.get(data);
+		return data;
 	}
 	
 	public void start() {
@@ -47,17 +47,10 @@ public class AcceptorWrapper {
 			sWAcceptorPool.recycle(this);
 			return res;
 		}
-
-		@Override
-		public void onPeriodicCheck(long timeout) {
-			mA.onPeriodicCheck(timeout);
-			sWAcceptorPool.recycle(this);
-		}
 	}
 	
 	public static interface IAcceptor {
 		public Error accept(SelectionKey selKey,int opts);
-		public void onPeriodicCheck(long timeout);
 	}
 	
 }
@@ -19,6 +19,27 @@ public class Configuration {
 	public static final String SERVER_PORT 	= "server_port";
 	public static final String LOCAL_PORT 	= "local_port";
 	public static final String COMMAND_PORT 	= "command_port";
+	public static final String REACTOR_NUM 	= "reactor_num";
+	public static final String DNS_WORKERS 	= "dns_workers";
+	public static final String DNS_CACHE_SIZE 	= "dns_cache_size";
+	public static final String DNS_CACHE_TTL 	= "dns_cache_ttl";
+	public static final String DNS_NEGATIVE_TTL 	= "dns_negative_ttl";
+	public static final String STATS_INTERVAL 	= "stats_interval";
+	public static final String MUX_PORT 	= "mux_port";
+	public static final String MUX_TUNNELS 	= "mux_tunnels";
+	public static final String TUNNEL_POOL_MIN 	= "tunnel_pool_min";
+	public static final String TUNNEL_POOL_MAX 	= "tunnel_pool_max";
+	public static final String TUNNEL_POOL_IDLE 	= "tunnel_pool_idle";
+	public static final String ZERO_RTT 	= "zero_rtt";
+	public static final String OPTIMISTIC_DATA 	= "optimistic_data";
+	public static final String DIRECT_BUFFER 	= "direct_buffer";
+	public static final String GATHER_WRITE 	= "gather_write";
+	public static final String PADDING_POLICY 	= "padding_policy";
+	public static final String PADDING_SIZE 	= "padding_size";
+	public static final String LEAK_SAMPLING 	= "leak_sampling";
+	public static final String MEMORY_LIMIT 	= "memory_limit";
+	public static final String MEMORY_HIGH 	= "memory_high";
+	public static final String MEMORY_LOW 	= "memory_low";
 	
 	public static final String LOG_PATH 		= "log_directory";
 	public static final String LOG_LEVL 		= "log_level";
@@ -1,25 +1,364 @@
 package com.chedifier.ladder.socks5;
 
-import com.chedifier.ladder.base.JobScheduler;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.chedifier.ladder.base.ExceptionHandler;
 import com.chedifier.ladder.base.Log;
-import com.chedifier.ladder.base.StringUtils;
-import com.chedifier.ladder.base.JobScheduler.Job;
 import com.chedifier.ladder.iface.IProxyListener;
 
+/**
+ * deliver messages to {@link IProxyListener} on one consumer thread.
+ * every publishing thread (mostly reactors) owns a single-producer ring, publishing only fills a preallocated slot,
+ * the consumer drains all rings in batches. messages are dropped if a ring is full, the publisher never blocks.
+ * slots of a ring are made as it first reaches them, and a ring is removed once its thread died and it is drained.
+ */
 public class Messenger {
-	
+
 	private static final String TAG = "Messenger";
-	
+
+	private static final int RING_SIZE = 1<<11;
+	private static final int MAX_ARGS = 6;
+	private static final int BATCH = 256;
+	private static final long IDLE_PARK_NANOS = 100*1000*1000L;
+
+	private static final byte ARG_OBJ = 0;
+	private static final byte ARG_INT = 1;
+	private static final byte ARG_LONG = 2;
+	private static final byte ARG_BYTE = 3;
+
+	private static final CopyOnWriteArrayList<Ring> sRings = new CopyOnWriteArrayList<Ring>();
+	private static final ThreadLocal<Ring> sLocalRing = new ThreadLocal<Ring>() {
+		@Override
+		protected Ring initialValue() {
+			Ring r = new Ring(Thread.currentThread());
+			sRings.add(r);
+			ensureConsumer();
+			return r;
+		}
+	};
+
+	private static Thread sConsumer;
+	private static volatile boolean sConsumerParked = false;
+	private static final AtomicLong sDropped = new AtomicLong(0L);
+
 	public static void notifyMessage(final IProxyListener l,final int msgId,final Object... params) {
-		Log.d(TAG, "notifyMessage: " + msgId + StringUtils.toString(params));
-		if(l != null) {
-			JobScheduler.schedule(new Job("Messenger#msg"+msgId) {
-				@Override
-				public void run() {
-					Log.d(TAG, "notifyMessage-run: " + msgId + StringUtils.toString(params));
-					l.onMessage(msgId, params);
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		int n = params == null?0:Math.min(params.length, MAX_ARGS);
+		for(int i=0;i<n;i++) {
+			s.types[i] = ARG_OBJ;
+			s.objs[i] = params[i];
+		}
+		s.fill(l, msgId, n);
+		r.publish();
+	}
+
+	public static void notifyMessage(IProxyListener l,int msgId,long a) {
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		s.putLong(0, a);
+		s.fill(l, msgId, 1);
+		r.publish();
+	}
+
+	public static void notifyMessage(IProxyListener l,int msgId,int a,int b) {
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		s.putInt(0, a);
+		s.putInt(1, b);
+		s.fill(l, msgId, 2);
+		r.publish();
+	}
+
+	public static void notifyMessage(IProxyListener l,int msgId,int a,long b) {
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		s.putInt(0, a);
+		s.putLong(1, b);
+		s.fill(l, msgId, 2);
+		r.publish();
+	}
+
+	public static void notifyMessage(IProxyListener l,int msgId,int a,long b,long c) {
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		s.putInt(0, a);
+		s.putLong(1, b);
+		s.putLong(2, c);
+		s.fill(l, msgId, 3);
+		r.publish();
+	}
+
+	public static void notifyMessage(IProxyListener l,int msgId,int a,byte b,int c) {
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		s.putInt(0, a);
+		s.types[1] = ARG_BYTE;
+		s.prims[1] = b;
+		s.putInt(2, c);
+		s.fill(l, msgId, 3);
+		r.publish();
+	}
+
+	public static void notifyMessage(IProxyListener l,int msgId,long a,long b) {
+		if(l == null) {
+			return;
+		}
+
+		Ring r = sLocalRing.get();
+		Slot s = r.claim();
+		if(s == null) {
+			onDropped(msgId);
+			return;
+		}
+
+		s.putLong(0, a);
+		s.putLong(1, b);
+		s.fill(l, msgId, 2);
+		r.publish();
+	}
+
+	public static long getDropped() {
+		return sDropped.get();
+	}
+
+	private static void onDropped(int msgId) {
+		if((sDropped.incrementAndGet() & 1023) == 1) {
+			Log.e(TAG, "message ring is full, drop msg " + msgId + " total dropped " + sDropped.get());
+		}
+	}
+
+	private static synchronized void ensureConsumer() {
+		if(sConsumer != null) {
+			return;
+		}
+
+		sConsumer = new Thread("SProxy-messenger") {
+			@Override
+			public void run() {
+				while(true) {
+					int n = 0;
+					for(Ring r:sRings) {
+						int d = r.drain(BATCH);
+						if(d == 0 && r.isDead()) {
+							sRings.remove(r);
+						}
+						n += d;
+					}
+
+					if(n == 0) {
+						sConsumerParked = true;
+						for(Ring r:sRings) {
+							if(!r.isEmpty()) {
+								sConsumerParked = false;
+								break;
+							}
+						}
+
+						if(sConsumerParked) {
+							LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+							sConsumerParked = false;
+						}
+					}
 				}
-			});
+			}
+		};
+		sConsumer.setDaemon(true);
+		sConsumer.start();
+	}
+
+	private static void wakeConsumer() {
+		if(sConsumerParked) {
+			sConsumerParked = false;
+			LockSupport.unpark(sConsumer);
+		}
+	}
+
+	private static final class Slot{
+		private IProxyListener listener;
+		private int msgId;
+		private int argc;
+		private final byte[] types = new byte[MAX_ARGS];
+		private final long[] prims = new long[MAX_ARGS];
+		private final Object[] objs = new Object[MAX_ARGS];
+
+		private void putInt(int i,int v) {
+			types[i] = ARG_INT;
+			prims[i] = v;
+		}
+
+		private void putLong(int i,long v) {
+			types[i] = ARG_LONG;
+			prims[i] = v;
+		}
+
+		private void fill(IProxyListener l,int msgId,int argc) {
+			this.listener = l;
+			this.msgId = msgId;
+			this.argc = argc;
+		}
+
+		private void deliver() {
+			Object[] params = new Object[argc];
+			for(int i=0;i<argc;i++) {
+				switch(types[i]) {
+					case ARG_INT:{
+						params[i] = (int)prims[i];
+						break;
+					}
+					case ARG_LONG:{
+						params[i] = prims[i];
+						break;
+					}
+					case ARG_BYTE:{
+						params[i] = (byte)prims[i];
+						break;
+					}
+					default:{
+						params[i] = objs[i];
+						objs[i] = null;
+						break;
+					}
+				}
+			}
+
+			IProxyListener l = listener;
+			listener = null;
+
+			try {
+				l.onMessage(msgId, params);
+			}catch(Throwable t) {
+				ExceptionHandler.handleException(t);
+			}
+		}
+	}
+
+	/**
+	 * single producer single consumer ring.
+	 */
+	private static final class Ring{
+		private final String mName;
+		private final WeakReference<Thread> mOwner;
+		//made by producer as it first reaches them, seen by consumer through the ordered store of tail.
+		private final Slot[] mSlots = new Slot[RING_SIZE];
+		private final AtomicLong mHead = new AtomicLong(0L);//next to consume, written by consumer only
+		private final AtomicLong mTail = new AtomicLong(0L);//next to publish, written by producer only
+		private long mCachedHead = 0L;
+
+		private Ring(Thread owner) {
+			mName = owner.getName();
+			mOwner = new WeakReference<Thread>(owner);
+		}
+
+		private Slot claim() {
+			long tail = mTail.get();
+			if(tail - mCachedHead >= RING_SIZE) {
+				mCachedHead = mHead.get();
+				if(tail - mCachedHead >= RING_SIZE) {
+					return null;
+				}
+			}
+
+			int i = (int)(tail & (RING_SIZE-1));
+			Slot s = mSlots[i];
+			if(s == null) {
+				s = mSlots[i] = new Slot();
+			}
+			return s;
+		}
+
+		private void publish() {
+			//ordered store only, a missed wakeup costs at most IDLE_PARK_NANOS of delivery latency.
+			mTail.lazySet(mTail.get() + 1);
+			wakeConsumer();
+		}
+
+		private boolean isEmpty() {
+			return mHead.get() >= mTail.get();
+		}
+
+		/**
+		 * @return true if the owner died and all it published is delivered, no one would publish again.
+		 * the death happens before isAlive() sees it, so its last publish is seen by isEmpty() after.
+		 */
+		private boolean isDead() {
+			Thread owner = mOwner.get();
+			return (owner == null || !owner.isAlive()) && isEmpty();
+		}
+
+		private int drain(int max) {
+			long head = mHead.get();
+			long tail = mTail.get();
+			int n = 0;
+			while(head < tail && n < max) {
+				mSlots[(int)(head & (RING_SIZE-1))].deliver();
+				++head; ++n;
+				mHead.lazySet(head);
+			}
+
+			return n;
+		}
+
+		@Override
+		public String toString() {
+			return mName;
 		}
 	}
 }
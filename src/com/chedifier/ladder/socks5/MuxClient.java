@@ -0,0 +1,68 @@
+package com.chedifier.ladder.socks5;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.chedifier.ladder.base.Log;
+import com.chedifier.ladder.socks5.MuxTunnel.IMuxListener;
+
+/**
+ * local side tunnels owned by one reactor, streams are spread over at most max tunnels.
+ * tunnels are opened on demand and kept until broken.
+ * only touched on the reactor thread.
+ */
+public class MuxClient implements IMuxListener {
+
+	private final String TAG;
+
+	private final Reactor mReactor;
+	private final InetSocketAddress mServer;
+	private final int mMaxTunnels;
+	private final List<MuxTunnel> mTunnels = new ArrayList<MuxTunnel>();
+
+	public MuxClient(Reactor reactor,InetSocketAddress server,int maxTunnels) {
+		TAG = "MuxClient_" + reactor.getId();
+		mReactor = reactor;
+		mServer = server;
+		mMaxTunnels = maxTunnels > 0?maxTunnels:1;
+	}
+
+	/**
+	 * @return null if no tunnel available.
+	 */
+	public MuxStream openStream() {
+		MuxTunnel chosen = null;
+		if(mTunnels.size() < mMaxTunnels) {
+			chosen = MuxTunnel.connect(mReactor, mServer, this);
+			if(chosen != null) {
+				mTunnels.add(chosen);
+				Log.r(TAG, "open tunnel " + mTunnels.size() + "/" + mMaxTunnels);
+			}
+		}
+
+		if(chosen == null) {
+			for(MuxTunnel t:mTunnels) {
+				if(t.isAlive() && (chosen == null || t.getStreamCount() < chosen.getStreamCount())) {
+					chosen = t;
+				}
+			}
+		}
+
+		return chosen == null?null:chosen.openStream();
+	}
+
+	public int getTunnelCount() {
+		return mTunnels.size();
+	}
+
+	@Override
+	public void onStreamOpen(MuxTunnel tunnel, MuxStream stream) {
+		Log.e(TAG, "unexpected stream open from server.");
+	}
+
+	@Override
+	public void onTunnelClosed(MuxTunnel tunnel) {
+		mTunnels.remove(tunnel);
+	}
+}
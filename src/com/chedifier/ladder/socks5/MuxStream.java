@@ -0,0 +1,187 @@
+package com.chedifier.ladder.socks5;
+
+import java.nio.ByteBuffer;
+
+import com.chedifier.ladder.base.Log;
+import com.chedifier.ladder.memory.RingBuffer;
+
+/**
+ * one SOCKS session carried by a {@link MuxTunnel}.
+ * acts as the dest endpoint of a {@link SSockChannel} on local side and as the source endpoint on server side,
+ * so the stages above see the same byte stream they would see on a dedicated socket.
+ * only touched on the reactor thread of the tunnel.
+ */
+public class MuxStream {
+
+	private final MuxTunnel mTunnel;
+	private final int mId;
+	private SSockChannel mChannel;
+	private boolean mIsSource;
+
+	private int mSendWindow = MuxTunnel.INITIAL_WINDOW;
+	private long mDelivered = 0L;
+	private long mCredited = 0L;
+	private boolean mClosed = false;
+	boolean mFlushQueued = false;
+	boolean mWindowQueued = false;
+
+	MuxStream(MuxTunnel tunnel,int id) {
+		mTunnel = tunnel;
+		mId = id;
+	}
+
+	private final String getTag() {
+		return "MuxStream_" + mId;
+	}
+
+	public int getId() {
+		return mId;
+	}
+
+	public MuxTunnel getTunnel() {
+		return mTunnel;
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	void bind(SSockChannel channel,boolean isSource) {
+		mChannel = channel;
+		mIsSource = isSource;
+	}
+
+	private RingBuffer inBuffer() {
+		return mChannel.getInBuffer(mIsSource);
+	}
+
+	private RingBuffer outBuffer() {
+		return mChannel.getOutBuffer(mIsSource);
+	}
+
+	/**
+	 * channel has data to send.
+	 */
+	void requestFlush() {
+		if(!mClosed) {
+			mTunnel.requestFlush(this);
+		}
+	}
+
+	/**
+	 * give back the window of data the channel has consumed.
+	 * the credit is only queued here and taken when the tunnel has room for the frame,
+	 * so credit piling up while the tunnel is slow goes out as one WINDOW frame.
+	 */
+	void checkWindow() {
+		if(mClosed || mChannel == null || !mChannel.isAlive()) {
+			return;
+		}
+
+		RingBuffer in = inBuffer();
+		long credit = mDelivered - in.size() - mCredited;
+		if(credit >= MuxTunnel.WINDOW_UPDATE_THRESHOLD || (credit > 0 && in.isEmpty())) {
+			mTunnel.requestWindow(this);
+		}
+	}
+
+	/**
+	 * @return credit of data consumed and not yet given back, 0 if none.
+	 */
+	int takeCredit() {
+		if(mClosed || mChannel == null || !mChannel.isAlive()) {
+			return 0;
+		}
+
+		long credit = mDelivered - inBuffer().size() - mCredited;
+		if(credit <= 0) {
+			return 0;
+		}
+
+		mCredited += credit;
+		return (int)credit;
+	}
+
+	/**
+	 * closed locally, tell the peer.
+	 */
+	void close() {
+		if(!mClosed) {
+			mClosed = true;
+			mTunnel.onStreamClosed(this, true);
+		}
+	}
+
+	boolean hasPendingOut() {
+		return !mClosed && mChannel != null && mChannel.isAlive() && mSendWindow > 0 && !outBuffer().isEmpty();
+	}
+
+	/**
+	 * move as much pending data as window allowed into tunnel out buffer as one DATA frame.
+	 * @param tunnelOut
+	 * @param max max payload
+	 * @return bytes of payload moved
+	 */
+	int drainTo(ByteBuffer tunnelOut,int max) {
+		if(!hasPendingOut()) {
+			return 0;
+		}
+
+		RingBuffer out = outBuffer();
+		int n = Math.min(Math.min(out.size(), mSendWindow), max);
+		if(n <= 0) {
+			return 0;
+		}
+
+		MuxTunnel.putHeader(tunnelOut, MuxTunnel.FRAME_DATA, mId, n);
+		out.get(tunnelOut, n);
+
+		mSendWindow -= n;
+		mChannel.onStreamWritten(mIsSource, n);
+		return n;
+	}
+
+	/**
+	 * DATA frame arrived.
+	 * @param data positioned at payload
+	 * @param len
+	 * @return false if peer overran the window.
+	 */
+	boolean onData(ByteBuffer data,int len) {
+		if(mClosed || mChannel == null || !mChannel.isAlive()) {
+			return true;
+		}
+
+		RingBuffer in = inBuffer();
+		if(in.free() < len) {
+			Log.e(getTag(), "peer exceeded window, need " + len + " remain " + in.free());
+			return false;
+		}
+
+		int limit = data.limit();
+		data.limit(data.position() + len);
+		in.put(data);
+		data.limit(limit);
+
+		mDelivered += len;
+		mChannel.onStreamRead(mIsSource, len);
+		return true;
+	}
+
+	void onWindow(int inc) {
+		mSendWindow += inc;
+		requestFlush();
+	}
+
+	/**
+	 * peer closed the stream or the tunnel broken.
+	 */
+	void onRemoteClose() {
+		if(!mClosed) {
+			mClosed = true;
+			if(mChannel != null) {
+				mChannel.onStreamClosed(mIsSource);
+			}
+		}
+	}
+}
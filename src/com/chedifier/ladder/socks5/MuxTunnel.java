@@ -0,0 +1,607 @@
+package com.chedifier.ladder.socks5;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.chedifier.ladder.base.ExceptionHandler;
+import com.chedifier.ladder.base.IOUtils;
+import com.chedifier.ladder.base.Log;
+import com.chedifier.ladder.base.TimingWheel.ITimeoutTask;
+import com.chedifier.ladder.base.TimingWheel.Timeout;
+import com.chedifier.ladder.cipher.Cipher;
+import com.chedifier.ladder.cipher.StreamDecoder;
+import com.chedifier.ladder.iface.Error;
+import com.chedifier.ladder.socks5.AcceptorWrapper.IAcceptor;
+
+/**
+ * one long-lived connection between local and server carrying many {@link MuxStream}s.
+ * the whole byte stream of the tunnel goes through a {@link Cipher}, frame headers included.
+ * it starts with the greeting {@link S5VerifyStage#MUX_GREETING} from local, answered by {@link S5VerifyStage#MUX_REPLY},
+ * server takes no frame before a valid greeting and drops a tunnel not greeting in {@link #VERIFY_TIMEOUT}.
+ * frame: type(1) | stream id(4) | payload length(2) | payload.
+ * payload of DATA is the stream bytes as they would be on a dedicated connection, that is already cipher framed by the stages;
+ * payload of WINDOW is the credit(4) returned to the sender.
+ * every stream may have at most {@link #INITIAL_WINDOW} bytes unacknowledged, which never exceeds the receiver's in buffer.
+ * only touched on the reactor thread it registered to.
+ */
+public class MuxTunnel implements IAcceptor {
+
+	public static final byte FRAME_OPEN 	= 1;
+	public static final byte FRAME_DATA 	= 2;
+	public static final byte FRAME_WINDOW 	= 3;
+	public static final byte FRAME_CLOSE 	= 4;
+
+	public static final int HEADER_SIZE = 7;
+	public static final int MAX_PAYLOAD = 16*1024;
+	public static final int INITIAL_WINDOW = SSockChannel.BUFFER_SIZE;
+	public static final int WINDOW_UPDATE_THRESHOLD = INITIAL_WINDOW>>2;
+
+	private static final int BUFFER_SIZE = 64*1024;
+	//room kept in out buffer for control frames while filling data.
+	private static final int CONTROL_RESERVE = 4*1024;
+	private static final long VERIFY_TIMEOUT = 10*1000L;
+
+	private static int sTunnelId = 0;
+
+	private final int mTunnelId;
+	private final boolean mIsLocal;
+	private final Reactor mReactor;
+	private final IMuxListener mListener;
+	private SocketChannel mSocket;
+	private SelectionKey mKey;
+	private boolean mConnected = false;
+	private boolean mAlive = true;
+	private boolean mFlushing = false;
+	//greeting of the peer checked.
+	private boolean mVerified = false;
+
+	private final Cipher mCipher = new Cipher();
+	private final StreamDecoder mDecoder = new StreamDecoder(mCipher);
+
+	//cipher bytes on wire, and frames in clear.
+	private ByteBuffer mIn = allocate(BUFFER_SIZE);
+	private ByteBuffer mOut = allocate(BUFFER_SIZE);
+	private ByteBuffer mPlainIn = allocate(BUFFER_SIZE);
+	private ByteBuffer mPlainOut = allocate(BUFFER_SIZE);
+	private final HashMap<Integer, MuxStream> mStreams = new HashMap<Integer, MuxStream>();
+	private final ArrayDeque<MuxStream> mFlushQueue = new ArrayDeque<MuxStream>();
+	//control frames wait here until out buffer has room, one WINDOW per stream at most.
+	private final ArrayDeque<Integer> mOpenQueue = new ArrayDeque<Integer>();
+	private final ArrayDeque<MuxStream> mWindowQueue = new ArrayDeque<MuxStream>();
+	private final ArrayDeque<Integer> mCloseQueue = new ArrayDeque<Integer>();
+	private int mNextStreamId = 1;
+
+	private final String getTag() {
+		return "MuxTunnel_" + mTunnelId + (mIsLocal?"_l":"_s");
+	}
+
+	private MuxTunnel(Reactor reactor,SocketChannel socket,boolean isLocal,IMuxListener l) {
+		synchronized (MuxTunnel.class) {
+			mTunnelId = ++sTunnelId;
+		}
+		mReactor = reactor;
+		mSocket = socket;
+		mIsLocal = isLocal;
+		mListener = l;
+	}
+
+	/**
+	 * local side, open a tunnel to server. streams can be opened at once, data is held until connected.
+	 * @param reactor
+	 * @param server
+	 * @param l
+	 * @return null if failed.
+	 */
+	public static MuxTunnel connect(Reactor reactor,InetSocketAddress server,IMuxListener l) {
+		SocketChannel sc = null;
+		try {
+			sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			sc.socket().setKeepAlive(true);
+			sc.socket().setTcpNoDelay(true);
+			MuxTunnel tunnel = new MuxTunnel(reactor, sc, true, l);
+			tunnel.mPlainOut.put(S5VerifyStage.MUX_GREETING);
+			if(sc.connect(server)) {
+				tunnel.mConnected = true;
+			}
+			tunnel.mKey = sc.register(reactor.getSelector(), tunnel.mConnected?SelectionKey.OP_READ:SelectionKey.OP_CONNECT, tunnel);
+			Log.i(tunnel.getTag(), "connecting " + server);
+			return tunnel;
+		} catch (Throwable t) {
+			Log.e("MuxTunnel", "open tunnel to " + server + " failed. " + t.getMessage());
+			ExceptionHandler.handleException(t);
+			IOUtils.safeClose(sc);
+		}
+
+		return null;
+	}
+
+	/**
+	 * server side, serve a tunnel accepted from local.
+	 * @param reactor
+	 * @param socket
+	 * @param l
+	 * @return null if failed.
+	 */
+	public static MuxTunnel accept(Reactor reactor,SocketChannel socket,IMuxListener l) {
+		try {
+			socket.configureBlocking(false);
+			socket.socket().setKeepAlive(true);
+			socket.socket().setTcpNoDelay(true);
+			MuxTunnel tunnel = new MuxTunnel(reactor, socket, false, l);
+			tunnel.mConnected = true;
+			tunnel.mKey = socket.register(reactor.getSelector(), SelectionKey.OP_READ, tunnel);
+			reactor.getTimingWheel().schedule(tunnel.mVerifyTimeout, VERIFY_TIMEOUT);
+			return tunnel;
+		} catch (Throwable t) {
+			Log.e("MuxTunnel", "serve tunnel failed. " + t.getMessage());
+			ExceptionHandler.handleException(t);
+			IOUtils.safeClose(socket);
+		}
+
+		return null;
+	}
+
+	public boolean isAlive() {
+		return mAlive;
+	}
+
+	public int getStreamCount() {
+		return mStreams.size();
+	}
+
+	public Reactor getReactor() {
+		return mReactor;
+	}
+
+	public String getRemoteAddress() {
+		if(mSocket != null && mSocket.socket() != null && mSocket.socket().getInetAddress() != null) {
+			return mSocket.socket().getInetAddress().getHostAddress();
+		}
+
+		return "unknown";
+	}
+
+	/**
+	 * local side, open a new stream. the OPEN frame is queued as other control frames,
+	 * data of the stream goes after it.
+	 * @return null if tunnel has died.
+	 */
+	public MuxStream openStream() {
+		if(!mAlive || !mIsLocal) {
+			return null;
+		}
+
+		int id = mNextStreamId;
+		mNextStreamId = mNextStreamId + 2 < 0?1:mNextStreamId + 2;
+		MuxStream stream = new MuxStream(this, id);
+		mStreams.put(id, stream);
+		mOpenQueue.offer(id);
+		flush();
+		return mAlive?stream:null;
+	}
+
+	private static ByteBuffer allocate(int size) {
+		return SSockChannel.isDirectBuffer()?ByteBuffer.allocateDirect(size):ByteBuffer.allocate(size);
+	}
+
+	static void putHeader(ByteBuffer out,byte type,int id,int len) {
+		out.put(type);
+		out.putInt(id);
+		out.putShort((short)len);
+	}
+
+	void requestFlush(MuxStream stream) {
+		if(!mAlive) {
+			return;
+		}
+
+		if(!stream.mFlushQueued) {
+			stream.mFlushQueued = true;
+			mFlushQueue.offer(stream);
+		}
+
+		flush();
+	}
+
+	/**
+	 * stream has credit to give back, it is taken when the WINDOW frame is written.
+	 */
+	void requestWindow(MuxStream stream) {
+		if(!mAlive || stream.mWindowQueued) {
+			return;
+		}
+
+		stream.mWindowQueued = true;
+		mWindowQueue.offer(stream);
+		flush();
+	}
+
+	void onStreamClosed(MuxStream stream,boolean notifyPeer) {
+		if(mStreams.remove(stream.getId()) == null) {
+			return;
+		}
+
+		if(notifyPeer) {
+			sendClose(stream.getId());
+		}
+	}
+
+	private void sendClose(int id) {
+		if(!mAlive) {
+			return;
+		}
+
+		mCloseQueue.offer(id);
+		flush();
+	}
+
+	/**
+	 * put queued control frames into out buffer as far as it has room, the rest waits for next flush.
+	 * OPENs go first, data is filled only once they are all in, as it needs more room than they left.
+	 */
+	private void fillControl() {
+		while(!mOpenQueue.isEmpty() && mPlainOut.remaining() >= HEADER_SIZE) {
+			putHeader(mPlainOut, FRAME_OPEN, mOpenQueue.poll(), 0);
+		}
+
+		while(!mWindowQueue.isEmpty() && mPlainOut.remaining() >= HEADER_SIZE + 4) {
+			MuxStream s = mWindowQueue.poll();
+			s.mWindowQueued = false;
+			int credit = mStreams.containsKey(s.getId())?s.takeCredit():0;
+			if(credit > 0) {
+				putHeader(mPlainOut, FRAME_WINDOW, s.getId(), 4);
+				mPlainOut.putInt(credit);
+			}
+		}
+
+		while(!mCloseQueue.isEmpty() && mPlainOut.remaining() >= HEADER_SIZE) {
+			putHeader(mPlainOut, FRAME_CLOSE, mCloseQueue.poll(), 0);
+		}
+	}
+
+	/**
+	 * put control frames, then pull data of streams into out buffer in round robin, one frame per stream per turn.
+	 */
+	private void fill() {
+		fillControl();
+		int n = mFlushQueue.size();
+		while(n-- > 0 && mPlainOut.remaining() > CONTROL_RESERVE + HEADER_SIZE) {
+			MuxStream s = mFlushQueue.poll();
+			s.mFlushQueued = false;
+			if(!mStreams.containsKey(s.getId())) {
+				continue;
+			}
+
+			s.drainTo(mPlainOut, Math.min(MAX_PAYLOAD, mPlainOut.remaining() - CONTROL_RESERVE - HEADER_SIZE));
+			if(s.hasPendingOut() && !s.mFlushQueued) {
+				s.mFlushQueued = true;
+				mFlushQueue.offer(s);
+			}
+		}
+	}
+
+	/**
+	 * encrypt frames filled into wire buffer as far as it has room.
+	 */
+	private boolean seal() {
+		while(mPlainOut.position() > 0) {
+			int len = Math.min(mPlainOut.position(), Cipher.MAX_ENCRYPT_SIZE);
+			if(mOut.remaining() < mCipher.encryptLen(len)) {
+				break;
+			}
+
+			int el = mCipher.encrypt(mPlainOut, 0, len, mOut);
+			if(el <= 0) {
+				Log.e(getTag(), "encrypt frames failed " + el);
+				return false;
+			}
+
+			mPlainOut.flip();
+			mPlainOut.position(el);
+			mPlainOut.compact();
+		}
+
+		return true;
+	}
+
+	private void flush() {
+		if(mFlushing || !mAlive || !mConnected) {
+			return;
+		}
+
+		mFlushing = true;
+		try {
+			while(mAlive) {
+				//server puts no frame before the greeting is answered.
+				if(mVerified || mIsLocal) {
+					fill();
+				}
+				if(!seal()) {
+					close(Error.E_S5_RELAY_ENCRYPT_FAILED);
+					break;
+				}
+				if(mOut.position() <= 0) {
+					break;
+				}
+
+				mOut.flip();
+				int w = mSocket.write(mOut);
+				mOut.compact();
+				if(w <= 0) {
+					break;
+				}
+			}
+		}catch(Throwable t) {
+			Log.e(getTag(), "write tunnel failed. " + t.getMessage());
+			ExceptionHandler.handleException(t);
+			close(Error.E_S5_SOCKET_WRITE_FAILED);
+		}finally {
+			mFlushing = false;
+		}
+
+		updateInterest();
+	}
+
+	private void updateInterest() {
+		if(!mAlive || mKey == null || !mKey.isValid() || !mConnected) {
+			return;
+		}
+
+		int ops = SelectionKey.OP_READ;
+		if(mOut.position() > 0 || mPlainOut.position() > 0 || !mFlushQueue.isEmpty()
+				|| !mOpenQueue.isEmpty() || !mWindowQueue.isEmpty() || !mCloseQueue.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+
+		if(mKey.interestOps() != ops) {
+			mKey.interestOps(ops);
+		}
+	}
+
+	@Override
+	public Error accept(SelectionKey selKey, int opts) {
+		if(!mAlive || !selKey.isValid()) {
+			return null;
+		}
+
+		if(selKey.isConnectable()) {
+			try {
+				if(!mSocket.finishConnect()) {
+					return null;
+				}
+				mConnected = true;
+				Log.i(getTag(), "tunnel connected.");
+			} catch (IOException e) {
+				Log.e(getTag(), "connect tunnel failed. " + e.getMessage());
+				close(Error.E_S5_BIND_PROXY_FAILED);
+				return null;
+			}
+			flush();
+		}
+
+		if(selKey.isValid() && selKey.isReadable()) {
+			int r;
+			try {
+				r = mSocket.read(mIn);
+			} catch (IOException e) {
+				Log.e(getTag(), "read tunnel failed. " + e.getMessage());
+				r = -1;
+			}
+
+			if(r < 0) {
+				close(Error.E_S5_CHANNEL_DEAD);
+				return null;
+			}
+
+			if(r > 0) {
+				decode();
+			}
+		}
+
+		if(mAlive && selKey.isValid() && selKey.isWritable()) {
+			flush();
+		}
+
+		return null;
+	}
+
+	/**
+	 * decrypt what is read and parse frames out of it, until neither makes progress.
+	 */
+	private void decode() {
+		while(mAlive) {
+			int p = mPlainIn.position();
+			int n = mDecoder.decode(mIn, 0, mIn.position(), mPlainIn);
+			if(n < 0) {
+				Log.e(getTag(), "decrypt tunnel failed.");
+				close(Error.E_S5_RELAY_DECRYPT_FAILED);
+				return;
+			}
+
+			if(n > 0) {
+				mIn.flip();
+				mIn.position(n);
+				mIn.compact();
+			}
+
+			boolean decoded = n > 0 || mPlainIn.position() != p;
+			if(!parse() && !decoded) {
+				break;
+			}
+		}
+
+		if(mAlive) {
+			flush();
+		}
+	}
+
+	/**
+	 * @return true if any byte of plain in buffer is consumed.
+	 */
+	private boolean parse() {
+		mPlainIn.flip();
+		int begin = mPlainIn.position();
+		if(!mVerified) {
+			verify();
+		}
+
+		while(mAlive && mVerified && mPlainIn.remaining() >= HEADER_SIZE) {
+			int start = mPlainIn.position();
+			byte type = mPlainIn.get(start);
+			int id = mPlainIn.getInt(start + 1);
+			int len = mPlainIn.getShort(start + 5)&0xFFFF;
+			if(len > MAX_PAYLOAD) {
+				Log.e(getTag(), "illegal frame length " + len);
+				close(Error.E_S5_RELAY_DECRYPT_FAILED);
+				return false;
+			}
+
+			if(mPlainIn.remaining() < HEADER_SIZE + len) {
+				break;
+			}
+
+			mPlainIn.position(start + HEADER_SIZE);
+			onFrame(type, id, len);
+			mPlainIn.position(start + HEADER_SIZE + len);
+		}
+
+		boolean consumed = mPlainIn.position() > begin;
+		if(mAlive) {
+			mPlainIn.compact();
+		}
+		return consumed;
+	}
+
+	/**
+	 * check the greeting, or its answer on local side, at head of plain in buffer.
+	 * server answers it and takes frames after it.
+	 */
+	private void verify() {
+		byte[] expect = mIsLocal?S5VerifyStage.MUX_REPLY:S5VerifyStage.MUX_GREETING;
+		int start = mPlainIn.position();
+		int n = Math.min(expect.length, mPlainIn.remaining());
+		for(int i=0;i<n;i++) {
+			if(mPlainIn.get(start + i) != expect[i]) {
+				Log.e(getTag(), "verify tunnel failed.");
+				close(Error.E_S5_VERIFY_FAILED);
+				return;
+			}
+		}
+
+		if(n < expect.length) {
+			return;
+		}
+
+		mPlainIn.position(start + expect.length);
+		mVerified = true;
+		if(!mIsLocal) {
+			mReactor.getTimingWheel().cancel(mVerifyTimeout);
+			mPlainOut.put(S5VerifyStage.MUX_REPLY);
+		}
+		Log.d(getTag(), "tunnel verified.");
+	}
+
+	private final Timeout mVerifyTimeout = new Timeout(new ITimeoutTask() {
+
+		@Override
+		public void onTimeout(Timeout timeout) {
+			if(!mVerified) {
+				Log.e(getTag(), "tunnel not verified in time.");
+				close(Error.E_S5_VERIFY_FAILED);
+			}
+		}
+	});
+
+	private void onFrame(byte type,int id,int len) {
+		MuxStream stream = mStreams.get(id);
+		switch(type) {
+			case FRAME_OPEN:{
+				if(mIsLocal || stream != null) {
+					Log.e(getTag(), "unexpected OPEN of stream " + id);
+					return;
+				}
+				stream = new MuxStream(this, id);
+				mStreams.put(id, stream);
+				if(mListener != null) {
+					mListener.onStreamOpen(this, stream);
+				}
+				break;
+			}
+			case FRAME_DATA:{
+				if(stream != null && !stream.onData(mPlainIn, len)) {
+					mStreams.remove(id);
+					stream.onRemoteClose();
+					sendClose(id);
+				}
+				break;
+			}
+			case FRAME_WINDOW:{
+				if(stream != null && len >= 4) {
+					stream.onWindow(mPlainIn.getInt(mPlainIn.position()));
+				}
+				break;
+			}
+			case FRAME_CLOSE:{
+				if(stream != null) {
+					mStreams.remove(id);
+					stream.onRemoteClose();
+				}
+				break;
+			}
+			default:{
+				Log.e(getTag(), "unknown frame " + type + " of stream " + id);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * close the tunnel and all streams on it.
+	 * @param reason
+	 */
+	public void close(Error reason) {
+		if(!mAlive) {
+			return;
+		}
+
+		Log.e(getTag(), "tunnel closed with " + mStreams.size() + " streams, " + (reason == null?"":reason.getMessage()));
+		mAlive = false;
+		if(mKey != null) {
+			mKey.cancel();
+			mKey = null;
+		}
+		IOUtils.safeClose(mSocket);
+		mReactor.getTimingWheel().cancel(mVerifyTimeout);
+
+		List<MuxStream> streams = new ArrayList<MuxStream>(mStreams.values());
+		mStreams.clear();
+		mFlushQueue.clear();
+		mOpenQueue.clear();
+		mWindowQueue.clear();
+		mCloseQueue.clear();
+		for(MuxStream s:streams) {
+			s.onRemoteClose();
+		}
+
+		if(mListener != null) {
+			mListener.onTunnelClosed(this);
+		}
+	}
+
+	public static interface IMuxListener {
+		/**
+		 * server side, peer opened a stream.
+		 */
+		void onStreamOpen(MuxTunnel tunnel,MuxStream stream);
+
+		void onTunnelClosed(MuxTunnel tunnel);
+	}
+}
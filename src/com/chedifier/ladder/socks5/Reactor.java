@@ -0,0 +1,323 @@
+package com.chedifier.ladder.socks5;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.chedifier.ladder.base.ExceptionHandler;
+import com.chedifier.ladder.base.IOUtils;
+import com.chedifier.ladder.base.Log;
+import com.chedifier.ladder.base.TimingWheel;
+import com.chedifier.ladder.base.TimingWheel.ITimeoutTask;
+import com.chedifier.ladder.base.TimingWheel.Timeout;
+import com.chedifier.ladder.memory.MemoryBudget;
+import com.chedifier.ladder.socks5.AcceptorWrapper.IAcceptor;
+
+/**
+ * one selector loop.
+ * every key registered to this reactor's selector must be touched only on the reactor's thread,
+ * other threads hand work over by {@link #post(Runnable)}.
+ */
+public class Reactor implements Runnable{
+
+	private final String TAG;
+
+	private static final long IDLE_SELECT_TIMEOUT = 10*1000L;
+	private static final long TICK_DURATION = 100L;
+	private static final int TICKS_PER_WHEEL = 512;
+	//under memory pressure channels are ranked this often, and the heaviest holding this share of bytes pause reading.
+	private static final long SHED_INTERVAL = 200L;
+	private static final int SHED_PERCENT = 50;
+
+	private final int mId;
+	private Selector mSelector;
+	private volatile boolean mWorking = false;
+	private Thread mThread;
+
+	private final ConcurrentLinkedQueue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger mLoad = new AtomicInteger(0);
+	private final TimingWheel mTimingWheel = new TimingWheel(TICK_DURATION, TICKS_PER_WHEEL);
+	//tasks due within a tick, by deadline. only touched on the reactor thread.
+	private final PriorityQueue<Delayed> mDelayedTasks = new PriorityQueue<Delayed>(16, new Comparator<Delayed>() {
+		@Override
+		public int compare(Delayed a, Delayed b) {
+			return Long.compare(a.mDeadline, b.mDeadline);
+		}
+	});
+
+	//channels living on this reactor. only touched on the reactor thread.
+	private final HashSet<SSockChannel> mChannels = new HashSet<SSockChannel>();
+	private final ArrayList<SSockChannel> mRank = new ArrayList<SSockChannel>();
+	private final Timeout mShedTimeout = new Timeout(new ITimeoutTask() {
+
+		@Override
+		public void onTimeout(Timeout timeout) {
+			if(MemoryBudget.isPressured()) {
+				shed();
+				mTimingWheel.schedule(timeout, SHED_INTERVAL);
+			}
+		}
+	});
+
+	public Reactor(int id) {
+		mId = id;
+		TAG = "Reactor_" + id;
+	}
+
+	public int getId() {
+		return mId;
+	}
+
+	public Selector getSelector() {
+		return mSelector;
+	}
+	
+	/**
+	 * timeouts of channels belong to this reactor, only be touched on the reactor thread.
+	 * @return
+	 */
+	public TimingWheel getTimingWheel() {
+		return mTimingWheel;
+	}
+
+	/**
+	 * open the selector, must be invoked before {@link #run()} or {@link #startThread()}.
+	 * @return
+	 */
+	public boolean open() {
+		try {
+			mSelector = Selector.open();
+			mWorking = true;
+			return true;
+		} catch (Throwable t) {
+			Log.e(TAG, "open selector failed. " + t.getMessage());
+			ExceptionHandler.handleException(t);
+		}
+
+		return false;
+	}
+
+	public void startThread() {
+		mThread = new Thread(this, "SProxy-" + TAG);
+		mThread.start();
+	}
+
+	public boolean isInReactorThread() {
+		return Thread.currentThread() == mThread;
+	}
+
+	/**
+	 * run task on the reactor thread at the beginning of next loop.
+	 * @param task
+	 */
+	public void post(Runnable task) {
+		if(task == null) {
+			return;
+		}
+
+		mPendingTasks.offer(task);
+		if(mSelector != null) {
+			mSelector.wakeup();
+		}
+	}
+
+	/**
+	 * run task on the reactor thread after delay milliseconds, as precise as select wakes up.
+	 * for delays shorter than a tick of the timing wheel, invoked on the reactor thread only.
+	 * @param task
+	 * @param delay
+	 */
+	public void postDelayed(Runnable task,long delay) {
+		if(task != null) {
+			mDelayedTasks.offer(new Delayed(task, TimingWheel.now() + delay));
+		}
+	}
+
+	void addChannel(SSockChannel channel) {
+		mChannels.add(channel);
+	}
+
+	void removeChannel(SSockChannel channel) {
+		mChannels.remove(channel);
+	}
+
+	/**
+	 * memory is under pressure, pause reading of the channels holding most bytes on this reactor,
+	 * then rank them again every {@link #SHED_INTERVAL} while the pressure lasts.
+	 */
+	void shedMemory() {
+		if(mShedTimeout.isPending()) {
+			return;
+		}
+
+		shed();
+		mTimingWheel.schedule(mShedTimeout, SHED_INTERVAL);
+	}
+
+	private void shed() {
+		long total = 0L;
+		for(SSockChannel c:mChannels) {
+			int n = c.getDrainableBytes();
+			if(n > 0) {
+				total += n;
+				mRank.add(c);
+			}
+		}
+
+		Collections.sort(mRank, HEAVIER);
+		long target = total*SHED_PERCENT/100;
+		long paused = 0L;
+		for(SSockChannel c:mRank) {
+			int n = c.getDrainableBytes();
+			if(paused >= target || n < SSockChannel.MEMORY_PAUSE_MIN) {
+				break;
+			}
+
+			c.pauseForMemory();
+			paused += n;
+		}
+		mRank.clear();
+	}
+
+	private static final Comparator<SSockChannel> HEAVIER = new Comparator<SSockChannel>() {
+		@Override
+		public int compare(SSockChannel a, SSockChannel b) {
+			return Integer.compare(b.getDrainableBytes(), a.getDrainableBytes());
+		}
+	};
+
+	public int getLoad() {
+		return mLoad.get();
+	}
+
+	public void incLoad() {
+		mLoad.incrementAndGet();
+	}
+
+	public void decLoad() {
+		mLoad.decrementAndGet();
+	}
+
+	public void stop() {
+		mWorking = false;
+		if(mSelector != null) {
+			mSelector.wakeup();
+		}
+	}
+
+	public void join(long millis) {
+		if(mThread != null && mThread != Thread.currentThread()) {
+			try {
+				mThread.join(millis);
+			} catch (InterruptedException e) {
+				ExceptionHandler.handleException(e);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		if(mThread == null) {
+			mThread = Thread.currentThread();
+		}
+
+		Log.r(TAG, "reactor start >>>");
+		while(mWorking) {
+			int sel = 0;
+			try {
+				sel = mSelector.select(selectTimeout());
+			} catch (Throwable t) {
+				ExceptionHandler.handleException(t);
+			}
+
+			runPendingTasks();
+			runDelayedTasks();
+			mTimingWheel.advance(TimingWheel.now());
+
+			if(sel == 0) {
+				continue;
+			}
+
+			Set<SelectionKey> selKeys = mSelector.selectedKeys();
+			Iterator<SelectionKey> it = selKeys.iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if(!key.isValid()) {
+					continue;
+				}
+
+				if(key.attachment() instanceof IAcceptor) {
+					try {
+						((IAcceptor)key.attachment()).accept(key,key.readyOps());
+					}catch(Throwable t) {
+						ExceptionHandler.handleException(t);
+					}
+				}
+			}
+		}
+
+		runPendingTasks();
+		Log.r(TAG, "reactor stopped.");
+	}
+
+	/**
+	 * close the selector, invoke after the loop exited and all channels been released.
+	 */
+	public void close() {
+		IOUtils.safeClose(mSelector);
+	}
+
+	private long selectTimeout() {
+		long timeout = mTimingWheel.isEmpty()?IDLE_SELECT_TIMEOUT:TICK_DURATION;
+		Delayed d = mDelayedTasks.peek();
+		if(d != null) {
+			timeout = Math.max(1L, Math.min(timeout, d.mDeadline - TimingWheel.now()));
+		}
+
+		return timeout;
+	}
+
+	private void runDelayedTasks() {
+		long now = TimingWheel.now();
+		Delayed d;
+		while((d = mDelayedTasks.peek()) != null && d.mDeadline <= now) {
+			mDelayedTasks.poll();
+			try {
+				d.mTask.run();
+			}catch(Throwable t) {
+				ExceptionHandler.handleException(t);
+			}
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while((task = mPendingTasks.poll()) != null) {
+			try {
+				task.run();
+			}catch(Throwable t) {
+				ExceptionHandler.handleException(t);
+			}
+		}
+	}
+
+	private static final class Delayed{
+		private final Runnable mTask;
+		private final long mDeadline;
+
+		private Delayed(Runnable task,long deadline) {
+			mTask = task;
+			mDeadline = deadline;
+		}
+	}
+
+}
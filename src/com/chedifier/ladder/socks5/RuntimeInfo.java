@@ -26,7 +26,7 @@ public class RuntimeInfo {
 		
 	}
 	
-	void onConnect(String client) {
+	synchronized void onConnect(String client) {
 		++maxConnections;
 		++aliveConnections;
 		if(aliveConnections > maxConcurrents) {
@@ -49,7 +49,7 @@ public class RuntimeInfo {
 		
 	}
 	
-	void onConnDisconnect(String client) {
+	synchronized void onConnDisconnect(String client) {
 		--aliveConnections;
 		
 		if(client != null) {
@@ -68,8 +68,11 @@ public class RuntimeInfo {
 		}
 	}
 	
+	/**
+	 * a snapshot taken under the lock connections are counted with, may be called from any thread.
+	 */
 	@Override
-	public String toString() {
+	public synchronized String toString() {
 		StringBuilder sb = new StringBuilder(128);
 		
 		sb.append("port: ").append(port).append("\n\r");
@@ -13,6 +13,8 @@ import com.chedifier.ladder.base.ExceptionHandler;
 import com.chedifier.ladder.base.Log;
 import com.chedifier.ladder.base.StringUtils;
 import com.chedifier.ladder.cipher.Cipher;
+import com.chedifier.ladder.dns.DnsResolver;
+import com.chedifier.ladder.dns.DnsResolver.IResolveCallback;
 import com.chedifier.ladder.iface.Error;
 import com.chedifier.ladder.iface.SProxyIface;
 import com.chedifier.ladder.memory.ByteBufferPool;
@@ -20,17 +22,51 @@ import com.chedifier.ladder.memory.ByteBufferPool;
 public class S5ConnStage extends AbsS5Stage{
 	private ConnInfo mConnInfo = new ConnInfo();
 	private Cipher mCipher = new Cipher();
+	private boolean mResolving = false;
+	private boolean mGreetingPending = false;
+	private boolean mOptimistic = sOptimistic;
+	private boolean mRequestSent = false;
+	
+	private static volatile boolean sOptimistic = false;
+	//how long the connect request waits for the first bytes of client to go out together.
+	//shorter than a tick of the timing wheel, it is timed by the select of reactor, see Reactor#postDelayed.
+	private static final long OPTIMISTIC_HOLD = 20L;
+	
+	/**
+	 * local side only, reply success to client as soon as the connect request is parsed,
+	 * and let the first bytes of client go out in the same write as the request.
+	 * a connect failed on server closes the client connection without any data.
+	 * @param enable
+	 */
+	public static void setOptimistic(boolean enable) {
+		sOptimistic = enable;
+	}
+	
 	public S5ConnStage(AbsS5Stage stage) {
 		super(stage);
 		
 	}
 	
+	/**
+	 * @param stage
+	 * @param greetingPending local side, greeting was answered locally and must be sent ahead of the connect request.
+	 */
+	public S5ConnStage(AbsS5Stage stage,boolean greetingPending) {
+		super(stage);
+		mGreetingPending = greetingPending;
+	}
+	
 	@Override
 	public void start() {
 		Log.d(getTag(), "S5ConnStage start>>>");
 		super.start();
 		
 		notifyState(SProxyIface.STATE.CONN);
+		
+		//connect request may come along with the greeting in one read.
+		if(getSrcInDataSize() > 0) {
+			onSourceOpts(SelectionKey.OP_READ);
+		}
 	}
 
 	@Override
@@ -43,9 +79,11 @@ public class S5ConnStage extends AbsS5Stage{
 		Log.d(getTag(), "onSourceOpts " + opts + " " + isLocal());
 		if((opts&SelectionKey.OP_READ) > 0) {
 			ByteBuffer buffer = getChannel().getSrcInBuffer();
-			if(isLocal()) {
-				Log.i(getTag(),"recv conn info: " + StringUtils.toRawString(buffer.array(), buffer.position()));
-				int result = buildConnInfo(mConnInfo,buffer.array(), 0, buffer.position());
+			if(isLocal() && mRequestSent) {
+				getChannel().relay(true, true);
+			}else if(isLocal()) {
+				Log.i(getTag(),"recv conn info: " + StringUtils.toRawString(buffer, buffer.position()));
+				int result = buildConnInfo(mConnInfo,bytesOf(buffer), 0, buffer.position());
 				if(result > 0){
 					Log.d(getTag(), "recv conn info success. " + mConnInfo);
 					notifyConnInfo();
@@ -57,14 +95,22 @@ public class S5ConnStage extends AbsS5Stage{
 						return;
 					}
 					
+					//greeting and connect request go out in one write.
 					int estLen = mCipher.encryptLen(buffer.position());
+					if(mGreetingPending) {
+						estLen += mCipher.encryptLen(S5VerifyStage.ZERO_RTT_GREETING.length);
+					}
 					ByteBuffer outBuffer = ByteBufferPool.obtain(estLen);
 					if(outBuffer != null && outBuffer.remaining() >= estLen) {
-						if(mCipher.encrypt(buffer.array(), 0, buffer.position(),outBuffer) > 0) {
+						if((!mGreetingPending || mCipher.encrypt(S5VerifyStage.ZERO_RTT_GREETING, outBuffer) > 0)
+								&& mCipher.encrypt(buffer, 0, buffer.position(),outBuffer) > 0) {
 							outBuffer.flip();
 							int l = outBuffer.remaining();
-							if(getChannel().writeToBuffer(true, outBuffer) == l) {
-								buffer.clear();
+							if(mOptimistic) {
+								replyOptimistically(outBuffer, l);
+							}else if(getChannel().writeToBuffer(true, outBuffer) == l) {
+								mGreetingPending = false;
+								getChannel().cutBuffer(true, buffer.position());
 							}else {
 								Log.e(getTag(), "send conn info to server failed.");
 							}
@@ -81,80 +127,31 @@ public class S5ConnStage extends AbsS5Stage{
 					return;
 				}
 			}else {
-				Log.d(getTag(), "decrypt buffer: " + StringUtils.toRawString(buffer.array(),0,buffer.position()));
+				if(mResolving) {
+					Log.d(getTag(), "remote address is resolving, hold on.");
+					return;
+				}
+				
+				Log.d(getTag(), "decrypt buffer: " + StringUtils.toRawString(buffer,0,buffer.position()));
 				ByteBuffer outBuffer = ByteBufferPool.obtain(mCipher.decryptLen(buffer.position()));
 				if(outBuffer == null) {
 					Log.e(getTag(), "obtain outBuffer failed");
 					return ;
 				}
-				int dl = mCipher.decrypt(buffer.array(), 0, buffer.position(),outBuffer);
+				//only the request, data of client may follow it in the same read.
+				int dl = mCipher.decrypt(buffer, 0, buffer.position(),outBuffer,1);
 				if(dl > 0) {
 					Log.i(getTag(),"recv conn info: " + StringUtils.toRawString(outBuffer.array(),0,outBuffer.position()));
 					int buildConnInfoResult = buildConnInfo(mConnInfo,outBuffer.array(), 0, outBuffer.position());
 					if(buildConnInfoResult > 0) {
 						notifyConnInfo();
 						Log.r(getTag(), "build conn info success. " + mConnInfo);
-						InetSocketAddress remoteAddr = buildRemoteAddress(mConnInfo);
-						Log.d(getTag(), "build remote address: " + remoteAddr);
-						if(remoteAddr != null) {
-							
-							Log.d(getTag(), "bind to remote " + remoteAddr);
-							boolean succ = false;
-							if(mConnInfo.connCmd == ConnInfo.CONN_CMD_TCP_STREAM || mConnInfo.connCmd == ConnInfo.CONN_CMD_TCP_BIND) {
-								SocketChannel tcpChannel = bindTCPServer(remoteAddr);
-								if(tcpChannel != null) {
-									getChannel().setDest(tcpChannel);
-									succ = true;
-								}
-							}else if(mConnInfo.connCmd == ConnInfo.CONN_CMD_UDP){
-								DatagramChannel udpChannel = bindUDPServer(remoteAddr);
-								if(udpChannel != null) {
-									getChannel().setDest(udpChannel);
-									succ = true;
-								}
-							}
-							
-							Log.d(getTag(), "bind to remote return " + succ);
-							if(succ) {
-								mConnInfo.netAddr = remoteAddr;
-								ByteBuffer rep = ByteBufferPool.obtain(256);
-								byte addrType = mConnInfo.addrInfo.addrtp;
-								rep.put(new byte[]{0x05,0x00,0x00,addrType});
-								if(addrType == 0x03) {									
-									rep.put((byte)(mConnInfo.addrInfo.addr.length&0xFF));
-								}
-								rep.put(mConnInfo.addrInfo.addr);
-								rep.put(mConnInfo.addrInfo._port);
-								
-								int estLen = mCipher.encryptLen(rep.position());
-								ByteBuffer outResult  = ByteBufferPool.obtain(estLen);
-								if(outResult != null && outResult.remaining() >= estLen) {
-									int el = mCipher.encrypt(rep.array(),0,rep.position(),outResult);
-									if(el > 0) {
-										outResult.flip();
-										int l = outResult.remaining();
-										if(getChannel().writeToBuffer(false, outResult) == l) {
-											getChannel().cutBuffer(buffer, dl);
-											forward();
-										}else {
-											Log.e(getTag(), "send conn feedback to local failed.");
-										}
-									}else {
-										Log.e(getTag(),"decrypt failed.");
-									}
-									
-								}else {
-									Log.e(getTag(), "obtain out buffer for encrypt failed");
-								}
-								ByteBufferPool.recycle(outResult);
-								ByteBufferPool.recycle(rep);
-							}else {
-								Log.e(getTag(), "bind remote failed: " + remoteAddr);
-								notifyError(Error.E_S5_CONN_BIND_REMOTE);
-							}
+						if(mConnInfo.addrInfo.addrtp == ConnInfo.ADDR_DOMAIN) {
+							resolveRemoteAddress(dl);
 						}else {
-							Log.e(getTag(), "receive wrong connect request.");
-							notifyError(Error.E_S5_CONN_BIND_REMOTE);
+							InetSocketAddress remoteAddr = buildRemoteAddress(mConnInfo);
+							Log.d(getTag(), "build remote address: " + remoteAddr);
+							connectRemote(remoteAddr, dl);
 						}
 					}else if(buildConnInfoResult < 0) {
 						Log.e(getTag(), "build conn info failed.");
@@ -171,6 +168,153 @@ public class S5ConnStage extends AbsS5Stage{
 //		Log.e(getTag(), "unexpected opts " + opts + " from src.");
 	}
 	
+	private void connectRemote(InetSocketAddress remoteAddr,int consumed) {
+		if(remoteAddr != null) {
+			
+			Log.d(getTag(), "bind to remote " + remoteAddr);
+			boolean succ = false;
+			if(mConnInfo.connCmd == ConnInfo.CONN_CMD_TCP_STREAM || mConnInfo.connCmd == ConnInfo.CONN_CMD_TCP_BIND) {
+				SocketChannel tcpChannel = bindTCPServer(remoteAddr);
+				if(tcpChannel != null) {
+					getChannel().setDest(tcpChannel);
+					succ = true;
+				}
+			}else if(mConnInfo.connCmd == ConnInfo.CONN_CMD_UDP){
+				DatagramChannel udpChannel = bindUDPServer(remoteAddr);
+				if(udpChannel != null) {
+					getChannel().setDest(udpChannel);
+					succ = true;
+				}
+			}
+			
+			Log.d(getTag(), "bind to remote return " + succ);
+			if(succ) {
+				mConnInfo.netAddr = remoteAddr;
+				ByteBuffer rep = buildReply();
+				
+				int estLen = mCipher.encryptLen(rep.position());
+				ByteBuffer outResult  = ByteBufferPool.obtain(estLen);
+				if(outResult != null && outResult.remaining() >= estLen) {
+					int el = mCipher.encrypt(rep.array(),0,rep.position(),outResult);
+					if(el > 0) {
+						outResult.flip();
+						int l = outResult.remaining();
+						if(getChannel().writeToBuffer(false, outResult) == l) {
+							getChannel().cutBuffer(true, consumed);
+							forward();
+						}else {
+							Log.e(getTag(), "send conn feedback to local failed.");
+						}
+					}else {
+						Log.e(getTag(),"decrypt failed.");
+					}
+					
+				}else {
+					Log.e(getTag(), "obtain out buffer for encrypt failed");
+				}
+				ByteBufferPool.recycle(outResult);
+				ByteBufferPool.recycle(rep);
+			}else {
+				Log.e(getTag(), "bind remote failed: " + remoteAddr);
+				notifyError(Error.E_S5_CONN_BIND_REMOTE);
+			}
+		}else {
+			Log.e(getTag(), "receive wrong connect request.");
+			notifyError(Error.E_S5_CONN_BIND_REMOTE);
+		}
+	}
+	
+	private ByteBuffer buildReply() {
+		ByteBuffer rep = ByteBufferPool.obtain(256);
+		byte addrType = mConnInfo.addrInfo.addrtp;
+		rep.put(new byte[]{0x05,0x00,0x00,addrType});
+		if(addrType == 0x03) {									
+			rep.put((byte)(mConnInfo.addrInfo.addr.length&0xFF));
+		}
+		rep.put(mConnInfo.addrInfo.addr);
+		rep.put(mConnInfo.addrInfo._port);
+		return rep;
+	}
+	
+	/**
+	 * tell client success at once, the request is held shortly in the out buffer to meet the first data of client.
+	 * stay in this stage until the reply of server comes.
+	 */
+	private void replyOptimistically(ByteBuffer request,int len) {
+		ByteBuffer rep = buildReply();
+		rep.flip();
+		int rl = rep.remaining();
+		if(getChannel().writeToBufferLater(true, request, OPTIMISTIC_HOLD) == len
+				&& getChannel().writeToBuffer(false, rep) == rl) {
+			mGreetingPending = false;
+			mRequestSent = true;
+			getChannel().cutBuffer(true, getSrcInDataSize());
+		}else {
+			Log.e(getTag(), "send conn info optimistically failed.");
+			notifyError(Error.E_S5_OUT_BUFFER_FULL_FILLED);
+		}
+		ByteBufferPool.recycle(rep);
+	}
+	
+	/**
+	 * local side, the reply of server comes after client has been told success.
+	 * consume it and go on relaying, or close client if server failed.
+	 */
+	private void onOptimisticReply() {
+		ByteBuffer buffer = getChannel().getDestInBuffer();
+		ByteBuffer outBuffer = ByteBufferPool.obtain(mCipher.decryptLen(buffer.position()));
+		int dl = mCipher.decrypt(buffer, 0, buffer.position(),outBuffer,1);
+		if(dl > 0) {
+			if(outBuffer.position() > 1 && outBuffer.get(0) == 0x05 && outBuffer.get(1) == 0x00) {
+				getChannel().cutBuffer(false, dl);
+				forward();
+			}else {
+				Log.e(getTag(), "server failed to connect remote after client been told success.");
+				notifyError(Error.E_S5_CONN_BIND_REMOTE);
+			}
+		}
+		ByteBufferPool.recycle(outBuffer);
+	}
+	
+	private void resolveRemoteAddress(final int consumed) {
+		final int port = mConnInfo.addrInfo.port;
+		if(port<0 || port > 65536) {
+			Log.e(getTag(), "invalidate port " + port);
+			notifyError(Error.E_S5_CONN_BIND_REMOTE);
+			return;
+		}
+		
+		byte[] addr = mConnInfo.addrInfo.addr;
+		String host = StringUtils.toString(addr, addr.length);
+		Log.d(getTag(), "resolve " + host);
+		mResolving = true;
+		DnsResolver.resolve(host, new IResolveCallback() {
+			
+			@Override
+			public void onResolved(final String host, final InetAddress address) {
+				getChannel().post(new Runnable() {
+					
+					@Override
+					public void run() {
+						mResolving = false;
+						if(!getChannel().isAlive()) {
+							Log.d(getTag(), "channel died while resolving " + host);
+							return;
+						}
+						
+						if(address == null) {
+							Log.e(getTag(), "resolve " + host + " failed.");
+							notifyError(Error.E_S5_CONN_RESOLVE_FAILED);
+							return;
+						}
+						
+						connectRemote(new InetSocketAddress(address, port), consumed);
+					}
+				});
+			}
+		});
+	}
+	
 	private InetSocketAddress buildRemoteAddress(ConnInfo connInfo) {
 		byte[] addr = connInfo.addrInfo.addr;
 		int port = connInfo.addrInfo.port;
@@ -179,32 +323,32 @@ public class S5ConnStage extends AbsS5Stage{
 			return null;
 		}
 		InetSocketAddress netAddr = null;
-		if(connInfo.addrInfo.addrtp == 0x03) {
-			netAddr = new InetSocketAddress(StringUtils.toString(addr, addr.length), port);
-		}else {
-			try {
-				netAddr = new InetSocketAddress(InetAddress.getByAddress(addr), port);
-			} catch (Throwable e) {
-				ExceptionHandler.handleException(e);
-			}
+		try {
+			netAddr = new InetSocketAddress(InetAddress.getByAddress(addr), port);
+		} catch (Throwable e) {
+			ExceptionHandler.handleException(e);
 		}
 		return netAddr;
 	}
 
 	@Override
 	public void onDestOpts(int opts) {
-		if(isLocal()) {
+		if(isLocal() && mRequestSent) {
+			if((opts&SelectionKey.OP_READ) > 0) {
+				onOptimisticReply();
+			}
+		}else if(isLocal()) {
 			if((opts&SelectionKey.OP_READ) > 0) {
 				ByteBuffer buffer = getChannel().getDestInBuffer();
-				Log.i(getTag(),"recv conn from server: " + StringUtils.toRawString(buffer.array(), buffer.position()));
+				Log.i(getTag(),"recv conn from server: " + StringUtils.toRawString(buffer, buffer.position()));
 				ByteBuffer outBuffer = ByteBufferPool.obtain(mCipher.decryptLen(buffer.position()));
 				if(outBuffer != null) {
-					int dl = mCipher.decrypt(buffer.array(), 0, buffer.position(),outBuffer);
+					int dl = mCipher.decrypt(buffer, 0, buffer.position(),outBuffer);
 					if(dl > 0) {
 						outBuffer.flip();
 						int ll = outBuffer.remaining();
 						if(getChannel().writeToBuffer(false, outBuffer) == ll) {
-							getChannel().cutBuffer(buffer, dl);
+							getChannel().cutBuffer(false, dl);
 							
 							forward();
 						}else {
@@ -18,11 +18,21 @@ public class S5TransStage extends AbsS5Stage{
 	public void start() {
 		Log.d(getTag(), "S5TransStage start>>>");
 		super.start();
+		getChannel().finishHandshake();
 		if(getChannel().getConnType() == SSockChannel.CONN_CMD_TCP) {
 			getChannel().setTimeout(3600*1000);
 		}
 		
 		notifyState(SProxyIface.STATE.TRANS);
+		
+		//data may arrive along with the connect request or reply.
+		if(getSrcInDataSize() > 0) {
+			getChannel().relay(true, isLocal());
+		}
+		
+		if(getDestInData() > 0) {
+			getChannel().relay(false, !isLocal());
+		}
 	}
 
 	@Override
@@ -30,11 +40,14 @@ public class S5TransStage extends AbsS5Stage{
 		return null;
 	}
 
+	//data read in is relayed, and data held for want of room is relayed once the other side has written.
 	@Override
 	public void onSourceOpts(int opts) {
 		if((opts&SelectionKey.OP_READ) > 0) {
 			getChannel().relay(true, isLocal());
-		}else if((opts&SelectionKey.OP_WRITE) > 0) {
+		}
+		
+		if((opts&SelectionKey.OP_WRITE) > 0) {
 			getChannel().relay(false, !isLocal());
 		}
 	}
@@ -43,10 +56,11 @@ public class S5TransStage extends AbsS5Stage{
 	public void onDestOpts(int opts) {
 		if((opts&SelectionKey.OP_READ) > 0) {
 			getChannel().relay(false, !isLocal());
-		}else if((opts&SelectionKey.OP_READ) > 0){
-			getChannel().relay(true, isLocal());
 		}
 		
+		if((opts&SelectionKey.OP_WRITE) > 0) {
+			getChannel().relay(true, isLocal());
+		}
 	}
 
 	@Override
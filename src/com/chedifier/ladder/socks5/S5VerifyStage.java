@@ -14,6 +14,35 @@ public class S5VerifyStage extends AbsS5Stage{
 	
 	private Cipher mCipher = new Cipher();
 	
+	private static final byte[] VERIFY_REPLY = {0x05,0x00};
+	/**
+	 * private method(RFC1928 X'80'-X'FE') telling server the greeting has been answered by local,
+	 * server replies nothing and the connect request follows at once.
+	 */
+	public static final byte METHOD_ZERO_RTT = (byte)0x80;
+	static final byte[] ZERO_RTT_GREETING = {0x05,0x01,METHOD_ZERO_RTT};
+	/**
+	 * private method opening a {@link MuxTunnel}, the greeting leads the cipher stream of the tunnel,
+	 * server answers it with the method taken before accepting any frame.
+	 */
+	public static final byte METHOD_MUX = (byte)0x81;
+	static final byte[] MUX_GREETING = {0x05,0x01,METHOD_MUX};
+	static final byte[] MUX_REPLY = {0x05,METHOD_MUX};
+	
+	private static volatile boolean sZeroRTT = false;
+	
+	/**
+	 * local side only, answer the greeting of client locally instead of waiting for server.
+	 * off by default, it needs a server recognizing {@link #METHOD_ZERO_RTT}, an older one fails every connection.
+	 * @param enable
+	 */
+	public static void setZeroRTT(boolean enable) {
+		sZeroRTT = enable;
+	}
+	
+	private boolean mZeroRTT = sZeroRTT;
+	private boolean mGreetingRelayed = false;
+	
 	public S5VerifyStage(AbsS5Stage stage) {
 		super(stage);
 	}
@@ -34,17 +63,20 @@ public class S5VerifyStage extends AbsS5Stage{
 
 	@Override
 	public AbsS5Stage next() {
-		return new S5ConnStage(this);
+		return new S5ConnStage(this, isLocal() && mZeroRTT);
 	}
 	
+	/**
+	 * @return length of the greeting, which data of client may follow. 0 if not complete yet, -1 if illegal.
+	 */
 	private int verify(byte[] data,int offset,int len) {
 		if(data != null) {
 			if(len > 2) {
 				if((data[offset]&0xFF) == (0x05)) {
 					int mths = data[offset+1]&0xFF;
 					if(mths > 0) {
-						if(len == (mths + 2)) {
-							return 1;
+						if(len >= (mths + 2)) {
+							return mths + 2;
 						}
 					}else {
 						return -1;
@@ -64,13 +96,24 @@ public class S5VerifyStage extends AbsS5Stage{
 			ByteBuffer buffer = getChannel().getSrcInBuffer();
 			int verifyInfoLen = buffer.position();
 			if(isLocal()) {
-				Log.d(getTag(), "recv verify from client:" + StringUtils.toRawString(buffer.array(),buffer.position()));
-				int verifyResult = verify(buffer.array(),0,verifyInfoLen);
-				if(verifyResult > 0) {
-					Log.d(getTag(), "recv verify success.");
-					if(getChannel().relay(true, true) != verifyInfoLen) {
-						Log.e(getTag(), "relay verify info to server failed.");
+				if(mGreetingRelayed) {
+					//what client pipelined after the greeting waits for the conn stage.
+					return;
+				}
+				
+				Log.d(getTag(), "recv verify from client:" + StringUtils.toRawString(buffer,buffer.position()));
+				int verifyResult = verify(bytesOf(buffer),0,verifyInfoLen);
+				if(verifyResult > 0 && mZeroRTT) {
+					Log.d(getTag(), "recv verify success, answer it locally.");
+					if(getChannel().writeToBuffer(false, ByteBuffer.wrap(VERIFY_REPLY)) == VERIFY_REPLY.length) {
+						getChannel().cutBuffer(true, verifyResult);
+						forward();
+					}else {
+						Log.e(getTag(), "send verify reply to client failed.");
 					}
+				}else if(verifyResult > 0) {
+					Log.d(getTag(), "recv verify success, " + (verifyInfoLen - verifyResult) + " bytes pipelined.");
+					relayGreeting(buffer, verifyResult);
 				}else if(verifyResult < 0){
 					Log.e(getTag(), "verify socks5 methos failed.");
 					notifyError(Error.E_S5_VERIFY_FAILED);
@@ -78,11 +121,15 @@ public class S5VerifyStage extends AbsS5Stage{
 				}
 			}else {
 				ByteBuffer decOutBuffer = ByteBufferPool.obtain(mCipher.decryptLen(verifyInfoLen));
-				int dl = mCipher.decrypt(buffer.array(), 0, verifyInfoLen,decOutBuffer);
+				int dl = mCipher.decrypt(buffer, 0, verifyInfoLen,decOutBuffer,1);
 				if(dl > 0) {
 					Log.d(getTag(), "recv verify data from local: " + StringUtils.toRawString(decOutBuffer.array(),0,decOutBuffer.position()));
 					int verifyResult = verify(decOutBuffer.array(), 0, decOutBuffer.position());
-					if(verifyResult > 0) {
+					if(verifyResult == ZERO_RTT_GREETING.length && decOutBuffer.get(2) == METHOD_ZERO_RTT) {
+						Log.d(getTag(), "verify answered by local already.");
+						getChannel().cutBuffer(true, dl);
+						forward();
+					}else if(verifyResult > 0 && verifyResult == decOutBuffer.position()) {
 						Log.d(getTag(), "verify success.");
 						
 						ByteBuffer back = ByteBufferPool.obtain(mCipher.encryptLen(2));
@@ -91,14 +138,14 @@ public class S5VerifyStage extends AbsS5Stage{
 							back.flip();
 							int ll = back.remaining();
 							if(getChannel().writeToBuffer(false, back) == ll) {
-								getChannel().cutBuffer(buffer, dl);
+								getChannel().cutBuffer(true, dl);
 								forward();
 							}else {
 								Log.e(getTag(), "send verify msg to remote failed.");
 							}
 						}
 						ByteBufferPool.recycle(back);
-					}else if(verifyResult < 0){
+					}else if(verifyResult != 0){
 						Log.e(getTag(), "verify socks5 methos failed.");
 						notifyError(Error.E_S5_VERIFY_FAILED);
 					}
@@ -113,19 +160,40 @@ public class S5VerifyStage extends AbsS5Stage{
 //		Log.e(TAG, "unexpected opts " + opts + " from src.");
 	}
 
+	/**
+	 * relay only the greeting to server, the rest is the connect request and goes after the reply.
+	 */
+	private void relayGreeting(ByteBuffer buffer,int len) {
+		int estLen = mCipher.encryptLen(len);
+		ByteBuffer outBuffer = ByteBufferPool.obtain(estLen);
+		if(mCipher.encrypt(buffer, 0, len, outBuffer) > 0) {
+			outBuffer.flip();
+			int l = outBuffer.remaining();
+			if(getChannel().writeToBuffer(true, outBuffer) == l) {
+				getChannel().cutBuffer(true, len);
+				mGreetingRelayed = true;
+			}else {
+				Log.e(getTag(), "relay verify info to server failed.");
+			}
+		}else {
+			Log.e(getTag(), "encrypt verify info failed.");
+		}
+		ByteBufferPool.recycle(outBuffer);
+	}
+
 	@Override
 	public void onDestOpts(int opts) {
-		if(isLocal()) {
+		if(isLocal() && !mZeroRTT) {
 			if((opts&SelectionKey.OP_READ) > 0) {
 				ByteBuffer buffer = getChannel().getDestInBuffer();
 				ByteBuffer decOutBuffer = ByteBufferPool.obtain(mCipher.decryptLen(buffer.position()));
-				int dl = mCipher.decrypt(buffer.array(), 0, buffer.position(),decOutBuffer);
+				int dl = mCipher.decrypt(buffer, 0, buffer.position(),decOutBuffer);
 				if(dl > 0) {
 					Log.d(getTag(), "recv verify info back from server: " + StringUtils.toRawString(decOutBuffer.array(),0,decOutBuffer.position()));
 					decOutBuffer.flip();
 					int ll = decOutBuffer.remaining();
 					if(getChannel().writeToBuffer(false, decOutBuffer) == ll) {
-						getChannel().cutBuffer(buffer, dl);
+						getChannel().cutBuffer(false, dl);
 						forward();
 					}else {
 						Log.e(getTag(), "send verify info to server failed.");
@@ -2,7 +2,6 @@ package com.chedifier.ladder.socks5;
 
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.HashSet;
@@ -12,19 +11,27 @@ import java.util.Set;
 import com.chedifier.ladder.base.DateUtils;
 import com.chedifier.ladder.base.ExceptionHandler;
 import com.chedifier.ladder.base.IOUtils;
+import com.chedifier.ladder.base.JobScheduler;
+import com.chedifier.ladder.base.JobScheduler.Job;
 import com.chedifier.ladder.base.Log;
 import com.chedifier.ladder.base.ObjectPool;
 import com.chedifier.ladder.base.ObjectPool.IConstructor;
-import com.chedifier.ladder.base.Timer;
-import com.chedifier.ladder.base.TimerTask;
+import com.chedifier.ladder.base.TimingWheel.ITimeoutTask;
+import com.chedifier.ladder.base.TimingWheel.Timeout;
+import com.chedifier.ladder.cipher.PaddingPolicy;
+import com.chedifier.ladder.dns.DnsResolver;
 import com.chedifier.ladder.iface.Error;
 import com.chedifier.ladder.iface.IProxyListener;
 import com.chedifier.ladder.iface.SProxyIface;
 import com.chedifier.ladder.memory.ByteBufferPool;
 import com.chedifier.ladder.memory.ByteBufferPool.IMemInfoListener;
+import com.chedifier.ladder.memory.MemoryBudget;
 import com.chedifier.ladder.socks5.AbsS5Stage.ICallback;
 import com.chedifier.ladder.socks5.AcceptorWrapper.IAcceptor;
+import com.chedifier.ladder.socks5.MuxTunnel.IMuxListener;
 import com.chedifier.ladder.socks5.SSockChannel.ITrafficEvent;
+import com.chedifier.ladder.socks5.TunnelPool.IWaiter;
+import com.chedifier.ladder.socks5.TunnelPool.Request;
 
 public class SProxy implements IAcceptor,IMemInfoListener{
 
@@ -32,14 +39,25 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 
 	private static int sConnectionId;
 	
-	private Selector mSelector;
+	private Reactor mAcceptReactor;
+	private Reactor[] mReactors;
+	private int mNextReactor = 0;
+	private long mStatsInterval = SSockChannel.DEFAULT_STATS_INTERVAL;
+	
+	private static final int[] TRAFFIC_MSG = {IProxyListener.SRC_IN,IProxyListener.SRC_OUT,IProxyListener.DEST_IN,IProxyListener.DEST_OUT};
 	private ServerSocketChannel mSocketChannel = null;
+	private ServerSocketChannel mMuxSocketChannel = null;
+	private SelectionKey mAcceptKey = null;
+	private SelectionKey mMuxAcceptKey = null;
+	private MuxClient[] mMuxClients;
+	private TunnelPool[] mTunnelPools;
 	private static RuntimeInfo mRuntimeInfo = new RuntimeInfo();
 	
 	private boolean mWorking = false;
 	private InetSocketAddress mProxyAddress;
 	
-	private ObjectPool<Relayer> mRelayerPool;
+	//relayers pooled by reactor, each touched by its own reactor only.
+	private ObjectPool<Relayer>[] mRelayerPools;
 	private Set<Relayer> mLivingRelayers = new HashSet<Relayer>();
 	private IProxyListener mListener;
 	
@@ -78,25 +96,25 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 			mRuntimeInfo.proxyPort = serverPort;
 			mProxyAddress = new InetSocketAddress(serverHost,serverPort);
 		}
-		
-		mRelayerPool = new ObjectPool<Relayer>(new IConstructor<Relayer>() {
-
-			@Override
-			public Relayer newInstance(Object... params) {
-				return new Relayer((SocketChannel)params[0]);
-			}
-
-			@Override
-			public void initialize(Relayer e, Object... params) {
-				e.init((SocketChannel)params[0]);
-			}
-		}, 20);
-		
 	}
 	
 	private void init() {
 		AcceptorWrapper.init();
+		DnsResolver.init(Configuration.getConfigInt(Configuration.DNS_WORKERS, 0),
+				Configuration.getConfigInt(Configuration.DNS_CACHE_SIZE, -1),
+				Configuration.getConfigInt(Configuration.DNS_CACHE_TTL, 0)*1000L,
+				Configuration.getConfigInt(Configuration.DNS_NEGATIVE_TTL, -1)*1000L);
 		ByteBufferPool.addListener(this);
+		ByteBufferPool.setLeakSampling(Configuration.getConfigInt(Configuration.LEAK_SAMPLING, 0));
+		MemoryBudget.configure(Configuration.getConfigInt(Configuration.MEMORY_LIMIT, 0)*1024L*1024L,
+				Configuration.getConfigInt(Configuration.MEMORY_HIGH, MemoryBudget.DEFAULT_HIGH),
+				Configuration.getConfigInt(Configuration.MEMORY_LOW, MemoryBudget.DEFAULT_LOW));
+		S5VerifyStage.setZeroRTT(Configuration.getConfigInt(Configuration.ZERO_RTT, 0) != 0);
+		S5ConnStage.setOptimistic(Configuration.getConfigInt(Configuration.OPTIMISTIC_DATA, 0) != 0);
+		SSockChannel.setDirectBuffer(Configuration.getConfigInt(Configuration.DIRECT_BUFFER, 0) != 0);
+		SSockChannel.setGatherWrite(Configuration.getConfigInt(Configuration.GATHER_WRITE, 0) != 0);
+		PaddingPolicy.configure(PaddingPolicy.parseMode(Configuration.getConfig(Configuration.PADDING_POLICY, "random")),
+				Configuration.getConfigInt(Configuration.PADDING_SIZE, 0));
 	}
 	
 	private synchronized int generateConnectionId() {
@@ -104,18 +122,41 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 	}
 
 	public void start() {
+		mAcceptReactor = new Reactor(0);
 		try {
-			mSelector = Selector.open();
+			if(!mAcceptReactor.open()) {
+				throw new IllegalStateException("open accept reactor failed.");
+			}
 			mSocketChannel = ServerSocketChannel.open();
 			mSocketChannel.configureBlocking(false);
 			InetSocketAddress addr = new InetSocketAddress(mRuntimeInfo.port);
 			mSocketChannel.bind(addr);
-			SelectionKey selKey = mSocketChannel.register(mSelector, SelectionKey.OP_ACCEPT);
-			selKey.attach(AcceptorWrapper.wrapper(this));
+			mAcceptKey = mSocketChannel.register(mAcceptReactor.getSelector(), SelectionKey.OP_ACCEPT);
+			mAcceptKey.attach(AcceptorWrapper.wrapper(this));
+			
+			int muxPort = Configuration.getConfigInt(Configuration.MUX_PORT, 0);
+			if(!mRuntimeInfo.isLocal && muxPort > 0) {
+				mMuxSocketChannel = ServerSocketChannel.open();
+				mMuxSocketChannel.configureBlocking(false);
+				mMuxSocketChannel.bind(new InetSocketAddress(muxPort));
+				mMuxAcceptKey = mMuxSocketChannel.register(mAcceptReactor.getSelector(), SelectionKey.OP_ACCEPT);
+				mMuxAcceptKey.attach(AcceptorWrapper.wrapper(this));
+				Log.r(TAG, "listening mux tunnels on " + muxPort);
+			}
 		}catch (Throwable t) {
 			Log.e(TAG, "start failed." + t.getMessage());
 			ExceptionHandler.handleException(t);
 			IOUtils.safeClose(mSocketChannel);
+			IOUtils.safeClose(mMuxSocketChannel);
+			mAcceptReactor.close();
+			Messenger.notifyMessage(mListener, IProxyListener.ERROR, 0,Error.E_LOCAL_SOCKET_BUILD_FAILED);
+			return;
+		}
+		
+		if(!startReactors()) {
+			IOUtils.safeClose(mSocketChannel);
+			IOUtils.safeClose(mMuxSocketChannel);
+			mAcceptReactor.close();
 			Messenger.notifyMessage(mListener, IProxyListener.ERROR, 0,Error.E_LOCAL_SOCKET_BUILD_FAILED);
 			return;
 		}
@@ -123,63 +164,15 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 		mWorking = true;
 		Messenger.notifyMessage(mListener, IProxyListener.PROXY_START, mRuntimeInfo.isLocal,mRuntimeInfo.port, mRuntimeInfo.proxyHost,mRuntimeInfo.proxyPort);
 		
-		long lastcheck = System.currentTimeMillis();
-		Log.r(TAG, "start success >>> listening " + mRuntimeInfo.port);
-		while(mWorking) {
-			long now = System.currentTimeMillis();
-			long cost = now;
-			
-			int sel = 0;
-			try {
-				Log.d(TAG, "select next ops...");
-				final long TIMEOUT = 10*1000L;
-				sel = mSelector.select(10*1000);
-				
-				if(System.currentTimeMillis() - lastcheck > TIMEOUT) {
-					Log.d(TAG, "onPeriodicCheck " + TIMEOUT);
-					Set<SelectionKey> regKeys = mSelector.keys();
-		            Iterator<SelectionKey> it = regKeys.iterator();  
-		            while (it.hasNext()) {
-		            	SelectionKey key = it.next();
-		            	if(key != null && key.attachment() instanceof IAcceptor) {
-	            			((IAcceptor)key.attachment()).onPeriodicCheck(TIMEOUT);
-	            		}
-		            }
-		            
-		            lastcheck = System.currentTimeMillis();
-				}
-				
-				if(sel == 0) {
-					Log.d(TAG, "nothing to do,go next... " + mSelector.selectedKeys().size());
-					continue;
-				}
-				Log.d(TAG, "selected ops: " + sel);
-			} catch (Throwable t) {
-				ExceptionHandler.handleException(t);
-			}
-			
-			now = System.currentTimeMillis();
-			
-			Set<SelectionKey> regKeys = mSelector.selectedKeys();
-            Iterator<SelectionKey> it = regKeys.iterator();  
-            while (it.hasNext()) {
-            		SelectionKey key = it.next();
-            		it.remove();
-            		if(!key.isValid()) {
-            			continue;
-            		}
-            		
-            		cost = System.currentTimeMillis();
-            		if(key != null && key.attachment() instanceof IAcceptor) {
-            			((IAcceptor)key.attachment()).accept(key,key.readyOps());
-            		}
-            		now = System.currentTimeMillis();
-            		cost = now - cost;
-//            		Log.t(TAG, "accept cost: "+cost);
-            }
-		}
+		Log.r(TAG, "start success >>> listening " + mRuntimeInfo.port + " with " + mReactors.length + " reactors");
+		mAcceptReactor.getTimingWheel().schedule(mDumpTimeout, DUMP_INTERVAL);
+		mAcceptReactor.run();
 		
+		IOUtils.safeClose(mSocketChannel);
+		IOUtils.safeClose(mMuxSocketChannel);
+		stopReactors();
 		stopAllRelayer();
+		closeReactors();
 		
 		Log.dumpBeforeExit(new Log.ICallback() {
 			
@@ -190,17 +183,139 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 		});
 	}
 	
+	@SuppressWarnings("unchecked")
+	private boolean startReactors() {
+		mStatsInterval = Configuration.getConfigInt(Configuration.STATS_INTERVAL, (int)SSockChannel.DEFAULT_STATS_INTERVAL);
+
+		int num = Configuration.getConfigInt(Configuration.REACTOR_NUM, 0);
+		if(num <= 0) {
+			num = Runtime.getRuntime().availableProcessors();
+		}
+		
+		mRelayerPools = new ObjectPool[num];
+		for(int i=0;i<num;i++) {
+			mRelayerPools[i] = new ObjectPool<Relayer>(new IConstructor<Relayer>() {
+
+				@Override
+				public Relayer newInstance(Object... params) {
+					return new Relayer();
+				}
+
+				@Override
+				public void initialize(Relayer e, Object... params) {
+				}
+			}, 20);
+		}
+		
+		mReactors = new Reactor[num];
+		for(int i=0;i<num;i++) {
+			Reactor reactor = new Reactor(i+1);
+			if(!reactor.open()) {
+				Log.e(TAG, "open reactor " + (i+1) + " failed.");
+				stopReactors();
+				closeReactors();
+				return false;
+			}
+			mReactors[i] = reactor;
+		}
+		
+		int muxPort = Configuration.getConfigInt(Configuration.MUX_PORT, 0);
+		if(mRuntimeInfo.isLocal && muxPort > 0) {
+			int tunnels = Configuration.getConfigInt(Configuration.MUX_TUNNELS, num);
+			InetSocketAddress muxAddr = new InetSocketAddress(mRuntimeInfo.proxyHost, muxPort);
+			mMuxClients = new MuxClient[num];
+			for(int i=0;i<num;i++) {
+				mMuxClients[i] = new MuxClient(mReactors[i], muxAddr, (tunnels + num - 1)/num);
+			}
+			Log.r(TAG, "multiplex sessions over " + tunnels + " tunnels to " + muxAddr);
+		}else if(mRuntimeInfo.isLocal && Configuration.getConfigInt(Configuration.TUNNEL_POOL_MAX, 0) > 0) {
+			int min = Configuration.getConfigInt(Configuration.TUNNEL_POOL_MIN, num);
+			int max = Configuration.getConfigInt(Configuration.TUNNEL_POOL_MAX, 0);
+			long idle = Configuration.getConfigInt(Configuration.TUNNEL_POOL_IDLE, (int)(TunnelPool.DEFAULT_MAX_IDLE/1000))*1000L;
+			mTunnelPools = new TunnelPool[num];
+			for(int i=0;i<num;i++) {
+				mTunnelPools[i] = new TunnelPool(mReactors[i], mProxyAddress, (min + num - 1)/num, (max + num - 1)/num, idle);
+				mTunnelPools[i].start();
+			}
+			Log.r(TAG, "keep " + min + "~" + max + " connections to server warm.");
+		}
+		
+		for(Reactor r:mReactors) {
+			r.startThread();
+		}
+		
+		return true;
+	}
+	
+	private void stopReactors() {
+		if(mReactors == null) {
+			return;
+		}
+		
+		for(Reactor r:mReactors) {
+			if(r != null) {
+				r.stop();
+			}
+		}
+		
+		for(Reactor r:mReactors) {
+			if(r != null) {
+				r.join(1000);
+			}
+		}
+	}
+	
+	private void closeReactors() {
+		if(mReactors != null) {
+			for(Reactor r:mReactors) {
+				if(r != null) {
+					r.close();
+				}
+			}
+		}
+		
+		mAcceptReactor.close();
+	}
+	
+	/**
+	 * pick the reactor with least living connections, start from the next of last chosen one
+	 * so that connections spread round-robin while loads are equal.
+	 * @return
+	 */
+	/**
+	 * serve a connection on reactor, the relayer is set up outside the lock of its pool.
+	 * invoked on the reactor thread.
+	 */
+	private void serve(SocketChannel conn,MuxStream stream,Reactor reactor) {
+		Relayer r = mRelayerPools[reactor.getId()-1].obtain();
+		r.init(conn, stream, reactor);
+	}
+	
+	private Reactor chooseReactor() {
+		int n = mReactors.length;
+		int start = mNextReactor = (mNextReactor + 1) % n;
+		Reactor chosen = mReactors[start];
+		for(int i=1;i<n;i++) {
+			Reactor r = mReactors[(start+i)%n];
+			if(r.getLoad() < chosen.getLoad()) {
+				chosen = r;
+			}
+		}
+		
+		return chosen;
+	}
+	
 	public void stop(String reason) {
 		Log.r(TAG, "proxy is stopping, reason: " + reason);
 		
 		if(mWorking) {
 			mWorking = false;
 			
-			if(mSelector != null) {			
-				mSelector.wakeup();
+			if(mAcceptReactor != null) {			
+				mAcceptReactor.stop();
 			}
 			
-			new Timer().schedule(new TimerTask() {
+			JobScheduler.schedule(new Job("SProxy#exit") {
 				
 				@Override
 				public void run() {
@@ -247,12 +362,42 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 	
 	@Override
 	public Error accept(SelectionKey selKey,int opt) {
-		if(selKey.isAcceptable()) {
+		if(selKey.isAcceptable() && MemoryBudget.isPressured()) {
+			deferAccept();
+			return null;
+		}
+		
+		if(selKey.isAcceptable() && selKey.channel() == mMuxSocketChannel) {
+			Log.d(TAG, "recv a mux tunnel...");
+			try {
+				final SocketChannel sc = mMuxSocketChannel.accept();
+				if(sc != null) {
+					final Reactor reactor = chooseReactor();
+					reactor.post(new Runnable() {
+						
+						@Override
+						public void run() {
+							MuxTunnel.accept(reactor, sc, mMuxListener);
+						}
+					});
+				}
+			} catch (Throwable e) {
+				ExceptionHandler.handleException(e);
+			}
+		}else if(selKey.isAcceptable()) {
 			Log.d(TAG, "recv a connection...");
 			try {
-				SocketChannel sc = mSocketChannel.accept();
-				if(sc != null) {		
-					mRelayerPool.obtain(sc);
+				final SocketChannel sc = mSocketChannel.accept();
+				if(sc != null) {
+					final Reactor reactor = chooseReactor();
+					reactor.incLoad();
+					reactor.post(new Runnable() {
+						
+						@Override
+						public void run() {
+							serve(sc,null,reactor);
+						}
+					});
 				}
 			} catch (Throwable e) {
 				ExceptionHandler.handleException(e);
@@ -261,45 +406,132 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 		return null;
 	}
 	
-	@Override
-	public void onPeriodicCheck(long timeout) {
-		mRuntimeInfo.dump();
+	/**
+	 * server side, every stream opened on a tunnel is served as a connection.
+	 */
+	private final IMuxListener mMuxListener = new IMuxListener() {
+		
+		@Override
+		public void onStreamOpen(MuxTunnel tunnel, MuxStream stream) {
+			tunnel.getReactor().incLoad();
+			serve(null,stream,tunnel.getReactor());
+		}
+		
+		@Override
+		public void onTunnelClosed(MuxTunnel tunnel) {
+			Log.d(TAG, "mux tunnel from " + tunnel.getRemoteAddress() + " closed.");
+		}
+	};
+	
+	private static final long ACCEPT_RETRY_INTERVAL = 200L;
+	
+	/**
+	 * memory is under pressure, connections wait in backlog of the listening sockets until it is over.
+	 */
+	private void deferAccept() {
+		Log.i(TAG, "memory pressured, defer accept.");
+		MemoryBudget.onAcceptDeferred();
+		setAcceptOps(0);
+		if(!mAcceptRetryTimeout.isPending()) {
+			mAcceptReactor.getTimingWheel().schedule(mAcceptRetryTimeout, ACCEPT_RETRY_INTERVAL);
+		}
 	}
+	
+	private void setAcceptOps(int ops) {
+		if(mAcceptKey != null && mAcceptKey.isValid()) {
+			mAcceptKey.interestOps(ops);
+		}
+		if(mMuxAcceptKey != null && mMuxAcceptKey.isValid()) {
+			mMuxAcceptKey.interestOps(ops);
+		}
+	}
+	
+	private final Timeout mAcceptRetryTimeout = new Timeout(new ITimeoutTask() {
+		
+		@Override
+		public void onTimeout(Timeout timeout) {
+			if(MemoryBudget.isPressured()) {
+				mAcceptReactor.getTimingWheel().schedule(timeout, ACCEPT_RETRY_INTERVAL);
+			}else {
+				Log.i(TAG, "memory pressure off, resume accept.");
+				setAcceptOps(SelectionKey.OP_ACCEPT);
+			}
+		}
+	});
+	
+	private static final long DUMP_INTERVAL = 10*1000L;
+	
+	private final Timeout mDumpTimeout = new Timeout(new ITimeoutTask() {
+		
+		@Override
+		public void onTimeout(Timeout timeout) {
+			mRuntimeInfo.dump();
+			mAcceptReactor.getTimingWheel().schedule(timeout, DUMP_INTERVAL);
+		}
+	});
 
-	private class Relayer implements ICallback,ITrafficEvent{
+	private class Relayer implements ICallback,ITrafficEvent,IWaiter{
 		
 		private SSockChannel mChannel;
+		private Reactor mReactor;
 		private int mConnId;
 		private boolean mAlive;
 		private String mClientAddr;
+		private Request mPoolRequest;
 		
-		private Relayer(SocketChannel conn) {
-			init(conn);
+		private Relayer() {
 		}
 		
 		private final String getTag() {
 			return "Relayer_c"+mConnId;
 		}
 		
-		private void init(SocketChannel conn) {
+		/**
+		 * @param conn connection from client, or null if served on a mux stream.
+		 * @param stream
+		 * @param reactor
+		 */
+		private void init(SocketChannel conn,MuxStream stream,Reactor reactor) {
+			mReactor = reactor;
 			mConnId = generateConnectionId();
-			mClientAddr = (conn.socket() != null && conn.socket().getInetAddress() != null)?conn.socket().getInetAddress().getHostAddress():"unknown";
+			if(conn != null) {
+				mClientAddr = (conn.socket() != null && conn.socket().getInetAddress() != null)?conn.socket().getInetAddress().getHostAddress():"unknown";
+			}else {
+				mClientAddr = stream.getTunnel().getRemoteAddress();
+			}
 			Log.d(getTag(), "receive an conntion " + mClientAddr);
 			
 			Messenger.notifyMessage(mListener, IProxyListener.RECV_CONN,mConnId, mClientAddr);
 			
 			incConnection(this);
+			mAlive = true;
 			
-			mChannel = new SSockChannel(mSelector);
+			mChannel = new SSockChannel(mReactor);
 			mChannel.setConnId(mConnId);
-			mChannel.setSource(conn);
+			if(conn != null) {
+				mChannel.setSource(conn);
+			}else {
+				mChannel.setSource(stream);
+			}
 			mChannel.setTrafficListener(this);
+			mChannel.setStatsInterval(mStatsInterval);
 			
 			AbsS5Stage stage = new S5VerifyStage(mChannel, mRuntimeInfo.isLocal, this);
 			stage.setConnId(mConnId);
 			stage.start();
 			
-			if(mRuntimeInfo.isLocal) {
+			if(mRuntimeInfo.isLocal && mMuxClients != null) {
+				MuxStream muxStream = mMuxClients[mReactor.getId()-1].openStream();
+				if(muxStream == null) {
+					Log.e(getTag(), "failed to open stream to proxy server.");
+					Messenger.notifyMessage(mListener, IProxyListener.ERROR,mConnId, Error.E_S5_BIND_PROXY_FAILED);
+					release();
+					return;
+				}
+				mChannel.setDest(muxStream);
+			}else if(mRuntimeInfo.isLocal && mTunnelPools != null) {
+				mPoolRequest = mTunnelPools[mReactor.getId()-1].take(this);
+			}else if(mRuntimeInfo.isLocal) {
 				try {
 					SocketChannel sc = SocketChannel.open();
 					mChannel.setDest(sc);
@@ -312,8 +544,6 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 					return;
 				}
 			}
-			
-			mAlive = true;
 		}
 		
 		private synchronized void release() {
@@ -324,15 +554,34 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 			
 			mAlive = false;
 			
+			if(mPoolRequest != null) {
+				mPoolRequest.cancel();
+				mPoolRequest = null;
+			}
+			
 			mChannel.destroy();
 			mChannel = null;
 			
 			decConnection(this);
+			mReactor.decLoad();
 			
 			Messenger.notifyMessage(mListener, IProxyListener.STATE_UPDATE, mConnId, SProxyIface.STATE.TERMINATE);
 			
 			mConnId = -1;
-			mRelayerPool.recycle(this);
+			mRelayerPools[mReactor.getId()-1].recycle(this);
+		}
+		
+		@Override
+		public void onTunnel(SocketChannel socket) {
+			mPoolRequest = null;
+			if(socket == null) {
+				Log.e(getTag(), "failed to connect to proxy server.");
+				Messenger.notifyMessage(mListener, IProxyListener.ERROR,mConnId, Error.E_S5_BIND_PROXY_FAILED);
+				release();
+				return;
+			}
+			
+			mChannel.setDest(socket);
 		}
 		
 		@Override
@@ -351,23 +600,24 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 		}
 		
 		@Override
-		public void onSrcIn(int len, long total) {
-			Messenger.notifyMessage(mListener,IProxyListener.SRC_IN, mConnId, total);
-		}
-
-		@Override
-		public void onSrcOut(int len, long total) {
-			Messenger.notifyMessage(mListener,IProxyListener.SRC_OUT, mConnId, total);
-		}
-
-		@Override
-		public void onDestIn(int len, long total) {
-			Messenger.notifyMessage(mListener,IProxyListener.DEST_IN, mConnId, total);
-		}
-
-		@Override
-		public void onDestOut(int len, long total) {
-			Messenger.notifyMessage(mListener,IProxyListener.DEST_OUT, mConnId, total);
+		public void onTraffic(TrafficStats stats) {
+			for(int dir=0;dir<TrafficStats.DIRECTIONS;dir++) {
+				if(stats.isTotalChanged(dir)) {
+					Messenger.notifyMessage(mListener,TRAFFIC_MSG[dir], mConnId, stats.getTotal(dir));
+				}
+				
+				if(stats.isSpeedChanged(dir)) {
+					Messenger.notifyMessage(mListener,IProxyListener.SPEED, mConnId, TrafficStats.toSpeedType(dir), stats.getSpeed(dir));
+				}
+			}
+			
+			if(stats.isWireChanged()) {
+				Messenger.notifyMessage(mListener,IProxyListener.WIRE_OVERHEAD, mConnId, stats.getPlainBytes(), stats.getWireBytes());
+			}
+			
+			if(stats.isResidentChanged()) {
+				Messenger.notifyMessage(mListener,IProxyListener.RESIDENT_MEMORY, mConnId, stats.getResidentBytes());
+			}
 		}
 
 		@Override
@@ -393,8 +643,11 @@ public class SProxy implements IAcceptor,IMemInfoListener{
 		.append(" , max concurrents: " + mRuntimeInfo.maxConcurrents)
 		.append(" , total connections: " + mRuntimeInfo.maxConnections).append("\n\r");
 		sb.append("runtimeInfo: \n\r").append(mRuntimeInfo.toString());
+		sb.append(DnsResolver.dumpInfo()).append("\n\r");
+		sb.append(TunnelPool.dumpInfo()).append("\n\r");
 		sb.append("using memory ").append(ByteBufferPool.getMemInUsing())
-		.append(" , Total memory ").append(ByteBufferPool.getMemTotal());
+		.append(" , Total memory ").append(ByteBufferPool.getMemTotal()).append("\n\r");
+		sb.append(MemoryBudget.dumpInfo());
 		return sb.toString();
 	}
 
@@ -3,6 +3,8 @@ package com.chedifier.ladder.socks5;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -12,67 +14,168 @@ import com.chedifier.ladder.base.ExceptionHandler;
 import com.chedifier.ladder.base.IOUtils;
 import com.chedifier.ladder.base.Log;
 import com.chedifier.ladder.base.NetUtils;
-import com.chedifier.ladder.base.StringUtils;
+import com.chedifier.ladder.base.TimingWheel;
+import com.chedifier.ladder.base.TimingWheel.ITimeoutTask;
+import com.chedifier.ladder.base.TimingWheel.Timeout;
+import com.chedifier.ladder.cipher.BlockWriter;
 import com.chedifier.ladder.cipher.Cipher;
+import com.chedifier.ladder.cipher.StreamDecoder;
 import com.chedifier.ladder.iface.Error;
-import com.chedifier.ladder.memory.ByteBufferPool;
+import com.chedifier.ladder.memory.MemoryBudget;
+import com.chedifier.ladder.memory.RingBuffer;
 import com.chedifier.ladder.socks5.AcceptorWrapper.IAcceptor;
 
-public class SSockChannel implements IAcceptor {
+public class SSockChannel implements IAcceptor,ITimeoutTask {
 
 	private int mConnId;
 	private SocketChannel mSource;
 	private SocketChannel mTCPDest;
 	private DatagramChannel mUDPDest;
 	
+	private Reactor mReactor;
 	private Selector mSelector;
 	private SelectionKey mSourceKey;
 	private SelectionKey mDestKey;
+	private MuxStream mSourceStream;
+	private MuxStream mDestStream;
+	private int mSourceStreamOps = 0;
+	private int mDestStreamOps = 0;
+	//interest ops wanted of the keys, and what the keys have, which is also what the listener was told last.
+	//while an event is handled, changes are kept here and applied to the keys once at its end.
+	private int mSourceOps = 0;
+	private int mDestOps = 0;
+	private int mSourceKeyOps = 0;
+	private int mDestKeyOps = 0;
+	private boolean mInEvent = false;
 	private byte mConnCmd = 0;
 	public static final byte CONN_CMD_TCP = 1;
 	public static final byte CONN_CMD_UDP = 2;
 	
 	private boolean mDestConnected;
 
-	private ByteBuffer mUpStreamBufferIn;
-	private ByteBuffer mUpStreamBufferOut;
-	private ByteBuffer mDownStreamBufferIn;
-	private ByteBuffer mDownStreamBufferOut;
+	private RingBuffer mUpStreamBufferIn;
+	private RingBuffer mUpStreamBufferOut;
+	private RingBuffer mDownStreamBufferIn;
+	private RingBuffer mDownStreamBufferOut;
 	private Cipher mCipher;
-
-	private long mSrcIn = 0l;
-	private long mSrcOut = 0l;
-	private long mDestIn = 0l;
-	private long mDestOut = 0l;
+	//only one direction of a channel is decrypted.
+	private StreamDecoder mDecoder;
+	//and only one encrypted, framed on write when gathering.
+	private BlockWriter mBlockWriter;
+
+	private TrafficStats mStats;
+	private long mStatsInterval = DEFAULT_STATS_INTERVAL;
+	public static final long DEFAULT_STATS_INTERVAL = 500L;
 	
 	private final byte MAX_RETRY_FOR_READ = 0;
 	private byte mRetryTimesWhileReadNull = 0;
 	
 	private boolean mAlive = false;
-	private long mTimeout = 0L;
 	private long mTimeoutLimit = 10*1000L;
+	private long mLastActive = 0L;
+	private long mLastWriteProgress = 0L;
+	
+	private static final long HANDSHAKE_TIMEOUT = 30*1000L;
+	private static final long CONNECT_TIMEOUT = 10*1000L;
+	private static final long WRITE_STALL_TIMEOUT = 60*1000L;
+	
+	//bytes and nanoseconds one readiness event may go on reading, relaying and writing for.
+	private static final int EVENT_BYTE_BUDGET = Cipher.MAX_PARCEL_SIZE<<5;
+	private static final long EVENT_TIME_BUDGET = 2*1000*1000L;
+	
+	//under memory pressure the reactor pauses reading of its heaviest channels, see Reactor#shedMemory().
+	//a channel holding less than this is not worth pausing, and a paused one resumes once drained below it.
+	static final int MEMORY_PAUSE_MIN = Cipher.MAX_PARCEL_SIZE;
+	private static final long MEMORY_CHECK_INTERVAL = 200L;
+	
+	//buffers of a channel quiet this long shrink to what their data needs.
+	private static final long SHRINK_IDLE = 5*1000L;
+	
+	private TimingWheel mTimingWheel;
+	private final Timeout mHandshakeTimeout = new Timeout(this);
+	private final Timeout mConnectTimeout = new Timeout(this);
+	private final Timeout mIdleTimeout = new Timeout(this);
+	private final Timeout mWriteStallTimeout = new Timeout(this);
+	private final Timeout mStatsTimeout = new Timeout(this);
+	private final Timeout mMemoryTimeout = new Timeout(this);
+	private final Timeout mShrinkTimeout = new Timeout(this);
+	private boolean mDeferredUp;
+	private final Runnable mDeferredWrite = new Runnable() {
+		@Override
+		public void run() {
+			RingBuffer buffer = mDeferredUp ? mUpStreamBufferOut : mDownStreamBufferOut;
+			if(mAlive && !buffer.isEmpty()) {
+				updateOps(!mDeferredUp, true, SelectionKey.OP_WRITE);
+			}
+		}
+	};
+	private boolean mSourceMemPaused = false;
+	private boolean mDestMemPaused = false;
+	private final boolean mGatherWrite = sGatherWrite;
 
 	private IChannelEvent mListener;
 	private ITrafficEvent mTrafficListener;
 
-	private final int BUFFER_SIZE = Cipher.MAX_PARCEL_SIZE<<2;
+	public static final int BUFFER_SIZE = Cipher.MAX_PARCEL_SIZE<<2;
+	
+	private static volatile boolean sDirectBuffer = false;
+	
+	/**
+	 * stream buffers off heap, socket io reads and writes them without the copy through jdk's temporary direct buffer.
+	 * takes effect on channels created after.
+	 */
+	public static void setDirectBuffer(boolean direct) {
+		sDirectBuffer = direct;
+	}
+	
+	public static boolean isDirectBuffer() {
+		return sDirectBuffer;
+	}
+	
+	private static volatile boolean sGatherWrite = false;
+	
+	/**
+	 * encrypted data to a socket is kept unpacked, and block headers go out with it by one gathering write,
+	 * instead of being packed into the out buffer.
+	 * takes effect on channels created after.
+	 */
+	public static void setGatherWrite(boolean gather) {
+		sGatherWrite = gather;
+	}
 
 	private final String getTag() {
 		return "SSockChannel_c" + mConnId;
 	}
 
-	public SSockChannel(Selector selector) {
-		mSelector = selector;
+	public SSockChannel(Reactor reactor) {
+		mReactor = reactor;
+		mSelector = reactor.getSelector();
+		mTimingWheel = reactor.getTimingWheel();
 		
 		mDestConnected = false;
 		
-		mUpStreamBufferIn = ByteBufferPool.obtain(BUFFER_SIZE);
-		mUpStreamBufferOut = ByteBufferPool.obtain(BUFFER_SIZE);
-		mDownStreamBufferIn = ByteBufferPool.obtain(BUFFER_SIZE);
-		mDownStreamBufferOut = ByteBufferPool.obtain(BUFFER_SIZE);
+		mUpStreamBufferIn = obtainBuffer();
+		mUpStreamBufferOut = obtainBuffer();
+		mDownStreamBufferIn = obtainBuffer();
+		mDownStreamBufferOut = obtainBuffer();
 		mCipher = new Cipher();
+		mDecoder = new StreamDecoder(mCipher);
 		
 		mAlive = true;
+		
+		mLastActive = TimingWheel.now();
+		mStats = new TrafficStats(mLastActive);
+		mTimingWheel.schedule(mHandshakeTimeout, HANDSHAKE_TIMEOUT);
+		mTimingWheel.schedule(mIdleTimeout, mTimeoutLimit);
+		mTimingWheel.schedule(mShrinkTimeout, SHRINK_IDLE);
+		mReactor.addChannel(this);
+	}
+
+	/**
+	 * buffers are taken on first use and grow with traffic, see {@link RingBuffer}.
+	 */
+	private static RingBuffer obtainBuffer() {
+		return new RingBuffer(BUFFER_SIZE, sDirectBuffer);
 	}
 
 	public void setListener(IChannelEvent l) {
@@ -82,6 +185,14 @@ public class SSockChannel implements IAcceptor {
 	public void setTrafficListener(ITrafficEvent l) {
 		mTrafficListener = l;
 	}
+	
+	/**
+	 * traffic is reported to {@link ITrafficEvent} at most once per interval.
+	 * @param interval milliseconds
+	 */
+	public void setStatsInterval(long interval) {
+		mStatsInterval = interval > 0?interval:DEFAULT_STATS_INTERVAL;
+	}
 
 	public void setConnId(int id) {
 		mConnId = id;
@@ -91,13 +202,36 @@ public class SSockChannel implements IAcceptor {
 		return mConnId;
 	}
 	
+	/**
+	 * close the channel if nothing happened in timeout milliseconds.
+	 * @param timeout
+	 */
 	public void setTimeout(long timeout) {
 		mTimeoutLimit = timeout;
 	}
 	
+	/**
+	 * verify and connect stages are done, stop the handshake deadline.
+	 */
+	public void finishHandshake() {
+		mTimingWheel.cancel(mHandshakeTimeout);
+	}
+	
 	public byte getConnType() {
 		return mConnCmd;
 	}
+	
+	public boolean isAlive() {
+		return mAlive;
+	}
+	
+	/**
+	 * run task on the reactor thread this channel belongs to.
+	 * @param task
+	 */
+	public void post(Runnable task) {
+		mReactor.post(task);
+	}
 
 	public void setDest(SocketChannel socket) {
 		Log.i(getTag(), "setDest " + socket + "  " + mTCPDest);
@@ -115,8 +249,14 @@ public class SSockChannel implements IAcceptor {
 				ExceptionHandler.handleException(e);
 			}
 			
-			updateOps(false, true, SelectionKey.OP_CONNECT);
 			mConnCmd = CONN_CMD_TCP;
+			if (mTCPDest.isConnected()) {
+				mDestConnected = true;
+				updateOps(false, true, SelectionKey.OP_READ | (!mUpStreamBufferOut.isEmpty()?SelectionKey.OP_WRITE:0));
+			} else {
+				updateOps(false, true, SelectionKey.OP_CONNECT);
+				mTimingWheel.schedule(mConnectTimeout, CONNECT_TIMEOUT);
+			}
 
 			return;
 		}
@@ -149,6 +289,29 @@ public class SSockChannel implements IAcceptor {
 		Log.e(getTag(), "dest socket already setted,can not be set dumplicated.");
 	}
 
+	/**
+	 * use a stream of mux tunnel as dest, it is connected as soon as the tunnel is.
+	 * @param stream
+	 */
+	public void setDest(MuxStream stream) {
+		Log.i(getTag(), "setDest stream " + (stream == null?null:stream.getId()));
+		if (!mAlive) {
+			Log.e(getTag(), "setDest>>> channel has died.");
+			return;
+		}
+
+		if (mConnCmd == 0 && mDestStream == null && stream != null) {
+			mDestStream = stream;
+			mDestStream.bind(this, false);
+			mConnCmd = CONN_CMD_TCP;
+			mDestConnected = true;
+			updateOps(false, true, SelectionKey.OP_READ);
+			return;
+		}
+
+		Log.e(getTag(), "dest socket already setted,can not be set dumplicated.");
+	}
+
 	public void setSource(SocketChannel socket) {
 		if (!mAlive) {
 			Log.e(getTag(), "setDest>>> channel has died.");
@@ -168,21 +331,40 @@ public class SSockChannel implements IAcceptor {
 		Log.e(getTag(), "src  socket already setted,can not be set dumplicated.");
 	}
 
+	/**
+	 * use a stream of mux tunnel as source.
+	 * @param stream
+	 */
+	public void setSource(MuxStream stream) {
+		if (!mAlive) {
+			Log.e(getTag(), "setSource>>> channel has died.");
+			return;
+		}
+
+		if (mSource == null && mSourceStream == null && stream != null) {
+			mSourceStream = stream;
+			mSourceStream.bind(this, true);
+			return;
+		}
+
+		Log.e(getTag(), "src  socket already setted,can not be set dumplicated.");
+	}
+
 	public int relay(boolean up, boolean encrypt) {
 		if (!mAlive) {
 			Log.e(getTag(), "relay failed, channel has died.");
 			return -1;
 		}
 
-		ByteBuffer from = up ? mUpStreamBufferIn : mDownStreamBufferIn;
-		ByteBuffer to = up ? mUpStreamBufferOut : mDownStreamBufferOut;
+		RingBuffer from = up ? mUpStreamBufferIn : mDownStreamBufferIn;
+		RingBuffer to = up ? mUpStreamBufferOut : mDownStreamBufferOut;
 		
 		int r = encrypt ? encryptRelay(from, to) : decryptRelay(from, to);
-		if (to.position() > 0) {
+		if (!to.isEmpty()) {
 			updateOps(!up, true, SelectionKey.OP_WRITE);
 		}
 		
-		if (r <= 0 && to.remaining() <= 0) {
+		if (r <= 0 && to.free() <= 0) {
 			Log.e(getTag(), "relay to " + (up?" remote":"local") + ">>> out buffer is full filled. pause reading in.");
 			updateOps(up, false, SelectionKey.OP_READ);
 		}
@@ -198,11 +380,12 @@ public class SSockChannel implements IAcceptor {
 
 		int w = 0;
 		if (data != null && data.remaining() > 0) {
-			ByteBuffer buffer = up ? mUpStreamBufferOut : mDownStreamBufferOut;
+			RingBuffer buffer = up ? mUpStreamBufferOut : mDownStreamBufferOut;
 			int r = data.remaining();
-			if (buffer.remaining() >= data.remaining()) {
+			if (buffer.free() >= data.remaining()) {
 				try {
 					buffer.put(data);
+					onRaw(buffer, r);
 					w = r;
 					updateOps(!up, true, SelectionKey.OP_WRITE);
 				}catch(Exception e) {
@@ -210,7 +393,7 @@ public class SSockChannel implements IAcceptor {
 				}
 			} else {
 				Log.e(getTag(), "writeToBuffer" + up + ">>> out buffer is full filled,need " + r + " remain "
-						+ buffer.remaining() + " pause data read in.");
+						+ buffer.free() + " pause data read in.");
 				updateOps(up,false,SelectionKey.OP_READ);
 			}
 		}
@@ -218,6 +401,29 @@ public class SSockChannel implements IAcceptor {
 		return w;
 	}
 
+	/**
+	 * like {@link #writeToBuffer(boolean, ByteBuffer)} but without waking the writer,
+	 * data goes out along with the next data relayed, or after delay milliseconds at the latest.
+	 */
+	public int writeToBufferLater(boolean up, ByteBuffer data, long delay) {
+		if (!mAlive) {
+			Log.e(getTag(), "write>>> channel has died.");
+			return -1;
+		}
+
+		RingBuffer buffer = up ? mUpStreamBufferOut : mDownStreamBufferOut;
+		if (data == null || data.remaining() <= 0 || buffer.free() < data.remaining()) {
+			return writeToBuffer(up, data);
+		}
+
+		int r = data.remaining();
+		buffer.put(data);
+		onRaw(buffer, r);
+		mDeferredUp = up;
+		mReactor.postDelayed(mDeferredWrite, delay);
+		return r;
+	}
+
 	/**
 	 * encrypt data in src and relay to dest.
 	 * 
@@ -228,64 +434,71 @@ public class SSockChannel implements IAcceptor {
 	 * @return the bytes be relayed of src, possibile 0 if nothing be relayed or -1
 	 *         if dest buffer is full filled.
 	 */
-	private int encryptRelay(ByteBuffer src, ByteBuffer dest) {
-		if (src.position() <= 0) {
+	private int encryptRelay(RingBuffer src, RingBuffer dest) {
+		if (src.isEmpty()) {
 			Log.d(getTag(), "encryptRelay>>> not data in src,nothing need to relay.");
 			return 0;
 		}
 
-		int len = src.position();
+		BlockWriter bw = blockWriter(dest);
 		int r = 0;
-		ByteBuffer outBuffer = ByteBufferPool.obtain(mCipher.encryptLen(len));
-		try {
-			while(true) {
-				if(len <= 0) {
-					break;
-				}
-				
-				int estl = mCipher.encryptLen(len);
-				if(estl > dest.remaining()) {
-					Log.d(getTag(), "encryptRelay>>> out buffer may be full filled: need " + estl + " remain " + dest.remaining());
-					notifyRelayFailed(Error.E_S5_OUT_BUFFER_FULL_FILLED);
-					break;
-				}
-				
-				int el = mCipher.encrypt(src.array(), r, len,outBuffer);
-				if (el > 0) {
-					outBuffer.flip();
-					int ll = outBuffer.remaining();
-					if(dest.remaining() >= ll) {
-						try {
-							dest.put(outBuffer);
-							outBuffer.clear();
-							r += el;
-							len -= el;
-							
-						}catch(Exception e) {
-							ExceptionHandler.handleException(e);
-							break;
-						}
-						
-					}else {
-						Log.e(getTag(), "encryptRelay>>> out buffer is full filled: need " + ll + " remain " + dest.remaining());
-						notifyRelayFailed(Error.E_S5_OUT_BUFFER_FULL_FILLED);
-						break;
-					}
-				}else {
-					Log.e(getTag(), "encryptRelay>>> encrypt data failed.");
-					notifyRelayFailed(Error.E_S5_RELAY_ENCRYPT_FAILED);
-					break;
-				}
+		while(!src.isEmpty()) {
+			//a parcel never spans the wrap of src.
+			ByteBuffer in = src.readView();
+			int len = in.remaining();
+			int estl = bw != null ? bw.encryptLen(len) : mCipher.encryptLen(len);
+			if(estl > dest.writable()) {
+				Log.d(getTag(), "encryptRelay>>> out buffer may be full filled: need " + estl + " remain " + dest.writable());
+				notifyRelayFailed(Error.E_S5_OUT_BUFFER_FULL_FILLED);
+				break;
+			}
+			
+			int el;
+			if (bw != null) {
+				el = bw.encrypt(in, in.position(), len);
+			} else {
+				//packed straight into dest.
+				ByteBuffer out = dest.writeView(estl);
+				int p = out.position();
+				el = mCipher.encrypt(in, in.position(), len, out);
+				dest.commitWrite(out.position() - p);
+			}
+			
+			if (el > 0) {
+				src.skip(el);
+				r += el;
+			}else {
+				Log.e(getTag(), "encryptRelay>>> encrypt data failed.");
+				notifyRelayFailed(Error.E_S5_RELAY_ENCRYPT_FAILED);
+				break;
 			}
-		}finally {
-			ByteBufferPool.recycle(outBuffer);
 		}
 		
-		if(r > 0) {
-			cutBuffer(src, r);
+		return r;
+	}
+	
+	/**
+	 * @return the writer framing dest on write, null if dest is packed.
+	 */
+	private BlockWriter blockWriter(RingBuffer dest) {
+		if (mBlockWriter == null && mGatherWrite) {
+			//only to a socket, a stream carries bytes as they are in the buffer.
+			boolean socket = dest == mUpStreamBufferOut ? mTCPDest != null : mSource != null;
+			if (socket) {
+				mBlockWriter = new BlockWriter(mCipher, dest);
+			}
 		}
 		
-		return r;
+		return mBlockWriter != null && mBlockWriter.getRing() == dest ? mBlockWriter : null;
+	}
+	
+	/**
+	 * bytes put to buffer as they are.
+	 */
+	private void onRaw(RingBuffer buffer, int len) {
+		if (mBlockWriter != null && mBlockWriter.getRing() == buffer) {
+			mBlockWriter.onRaw(len);
+		}
 	}
 
 	/**
@@ -298,85 +511,100 @@ public class SSockChannel implements IAcceptor {
 	 * @return the bytes be relayed, possibile 0 if nothing be relayed or -1 if dest
 	 *         buffer is full filled.
 	 */
-	private int decryptRelay(ByteBuffer src, ByteBuffer dest) {
-		if (src.position() <= 0) {
+	private int decryptRelay(RingBuffer src, RingBuffer dest) {
+		if (src.isEmpty() && !mDecoder.hasPending()) {
 			Log.d(getTag(), "decryptRelay>>> no data in src,nothing need to relay.");
 			return 0;
 		}
 
-		int len = src.position();
-		ByteBuffer decOutBuffer = ByteBufferPool.obtain(mCipher.decryptLen(len));
-		int  r = 0;
-		try {
-			while(true) {
-				if(len <= 0) {
-					break;
-				}
-				
-				if(dest.remaining() < Cipher.MAX_PARCEL_SIZE) {
-					Log.e(getTag(), "decryptRelay>>> out buffer maybe full filled,need " + Cipher.MAX_PARCEL_SIZE + " remain " + dest.remaining());
-					notifyRelayFailed(Error.E_S5_OUT_BUFFER_FULL_FILLED);
-					break;
+		//parcels not completed are kept by the decoder, so src is taken whole unless dest is full.
+		//a parcel dest had no room for is kept too, and goes out first once it has.
+		int r = 0, need = Cipher.MAX_PARCEL_SIZE;
+		while(!src.isEmpty() || mDecoder.hasPending()) {
+			ByteBuffer in = src.readView();
+			int len = in.remaining();
+			ByteBuffer out = dest.writeView(need);
+			int p = out.position();
+			int room = out.remaining();
+			int dl = mDecoder.decode(in, in.position(), len, out);
+			if (dl == Cipher.ERR_BROKEN) {
+				Log.e(getTag(), "decryptRelay>>> decrypt packs failed, stream broken.");
+				src.clear();
+				notifyRelayFailed(Error.E_S5_RELAY_DECRYPT_FAILED);
+				notifySocketClosed(Error.E_S5_RELAY_DECRYPT_FAILED);
+				return 0;
+			}
+			
+			dest.commitWrite(out.position() - p);
+			src.skip(dl);
+			r += dl;
+			
+			if (src.isEmpty() && !mDecoder.hasPending()) {
+				break;
+			}
+			
+			if (dl <= 0 && out.position() == p) {
+				//stopped at the end of dest, go on if more room waits past the wrap.
+				if (dest.writable() > room) {
+					need = room + 1;
+					continue;
 				}
 				
-				int dl = mCipher.decrypt(src.array(), r, len,decOutBuffer);
-				if (dl > 0) {
-					decOutBuffer.flip();
-					final int ll = decOutBuffer.remaining();
-					if (dest.remaining() >= ll) {
-						dest.put(decOutBuffer);
-						decOutBuffer.clear();
-						r += dl;
-						len -= dl;
-					} else {
-						Log.e(getTag(), "decryptRelay>>> out buffer is full filled,need " + ll + " remain " + dest.remaining());
-						notifyRelayFailed(Error.E_S5_OUT_BUFFER_FULL_FILLED);
-						break;
-					}
-				} else {
-					Log.d(getTag(), "decryptRelay>>> decrypt packs failed.");
-					notifyRelayFailed(Error.E_S5_RELAY_DECRYPT_FAILED);
-					break;
-				}
+				Log.e(getTag(), "decryptRelay>>> out buffer is full filled, remain " + dest.free());
+				notifyRelayFailed(Error.E_S5_OUT_BUFFER_FULL_FILLED);
+				break;
 			}
-		}finally {
-			ByteBufferPool.recycle(decOutBuffer);
-		}
-		
-		if(r > 0) {
-			cutBuffer(src, r);
 		}
 
 		return r;
 	}
 
-	public int cutBuffer(ByteBuffer buffer, int len) {
-		if (buffer != null && buffer.position() >= len) {
-			Log.i(getTag(), "before cut " + len + " : " + buffer.position());
-			buffer.flip();
-			buffer.position(len);
-			buffer.compact();
-			Log.i(getTag(), "after cut " + len + " : " + buffer.position());
-			return len;
+	/**
+	 * consume len bytes of the in buffer.
+	 * @param src true for the in buffer of source.
+	 */
+	public int cutBuffer(boolean src, int len) {
+		RingBuffer buffer = src ? mUpStreamBufferIn : mDownStreamBufferIn;
+		if (buffer != null && buffer.size() >= len) {
+			Log.i(getTag(), "cut " + len + " : " + buffer.size());
+			return buffer.skip(len);
 		}
 
 		return 0;
 	}
 
+	/**
+	 * data in the in buffer of source, from index 0 to position. for parsing handshake messages,
+	 * valid until the channel is touched again, consume by {@link #cutBuffer(boolean, int)}.
+	 */
 	public ByteBuffer getSrcInBuffer() {
-		return mUpStreamBufferIn;
+		return mUpStreamBufferIn.linear();
 	}
 
+	/**
+	 * as {@link #getSrcInBuffer()}, of dest.
+	 */
 	public ByteBuffer getDestInBuffer() {
-		return mDownStreamBufferIn;
+		return mDownStreamBufferIn.linear();
+	}
+
+	public int getSrcInDataSize() {
+		return mUpStreamBufferIn.size();
+	}
+
+	public int getDestInDataSize() {
+		return mDownStreamBufferIn.size();
 	}
 
-	public ByteBuffer getSrcOutBuffer() {
-		return mUpStreamBufferOut;
+	RingBuffer getInBuffer(boolean src) {
+		return src ? mUpStreamBufferIn : mDownStreamBufferIn;
 	}
 
-	public ByteBuffer getDestOutBuffer() {
-		return mDownStreamBufferOut;
+	/**
+	 * @param src true for the out buffer to source.
+	 */
+	RingBuffer getOutBuffer(boolean src) {
+		return src ? mDownStreamBufferOut : mUpStreamBufferOut;
 	}
 
 	private SelectionKey registerOpts(AbstractSelectableChannel socketChannel, int ops) {
@@ -394,36 +622,180 @@ public class SSockChannel implements IAcceptor {
 	}
 
 	public void updateOps(boolean src, boolean add, int opts) {
-		Log.i(getTag(), "updateOps " + (add?"enable ":"disable ") + (src?" src " :" dest ") + opts + ": " + NetUtils.getOpsDesc(opts));
+		if (add && (opts&SelectionKey.OP_READ) > 0 && (src ? mSourceMemPaused : mDestMemPaused)) {
+			//held by memory pressure, resumed by resumeMemPaused.
+			opts &= ~SelectionKey.OP_READ;
+			if (opts == 0) {
+				return;
+			}
+		}
+		
+		MuxStream stream = src ? mSourceStream : mDestStream;
+		if (stream != null) {
+			updateStreamOps(src, stream, add, opts);
+			return;
+		}
+
 		SelectionKey key = src ? mSourceKey : mDestKey;
 		if (key != null && !key.isValid()) {
 			return;
 		}
 		
-		if(key != null) {
-			int oldOps = key.interestOps();
-			opts = add ? (opts | oldOps) : (oldOps & (~opts));
-		}
-
+		int oldOps = src ? mSourceOps : mDestOps;
+		int newOps = add ? (opts | oldOps) : (oldOps & (~opts));
 		if (src) {
-			if(mSourceKey != null && mSourceKey.isValid()) {				
-				mSourceKey.interestOps(opts);
-			}else {				
-				mSourceKey = registerOpts(mSource, opts);
-			}
+			mSourceOps = newOps;
 		} else {
-			if(mDestKey != null && mDestKey.isValid()) {
-				mDestKey.interestOps(opts);
-			}else {				
-				mDestKey = registerOpts(mTCPDest==null?mUDPDest:mTCPDest, opts);
+			mDestOps = newOps;
+		}
+		
+		if(add && (opts&SelectionKey.OP_WRITE) > 0) {
+			armWriteStall();
+		}
+
+		if (key == null) {
+			Log.i(getTag(), "register " + (src?"src ":"dest ") + newOps + ": " + NetUtils.getOpsDesc(newOps));
+			if (src) {
+				mSourceKey = registerOpts(mSource, newOps);
+				mSourceKeyOps = newOps;
+			} else {
+				mDestKey = registerOpts(mTCPDest==null?mUDPDest:mTCPDest, newOps);
+				mDestKeyOps = newOps;
 			}
+			notifyIntrestOpsUpdate(src);
+		} else if (!mInEvent) {
+			applyOps(src);
+		}
+	}
+	
+	/**
+	 * set the key to the ops wanted, if they differ.
+	 */
+	private void applyOps(boolean src) {
+		SelectionKey key = src ? mSourceKey : mDestKey;
+		int ops = src ? mSourceOps : mDestOps;
+		if (key == null || !key.isValid() || ops == (src ? mSourceKeyOps : mDestKeyOps)) {
+			return;
 		}
 		
+		Log.d(getTag(), "applyOps " + (src?"src ":"dest ") + ops + ": " + NetUtils.getOpsDesc(ops));
+		key.interestOps(ops);
+		if (src) {
+			mSourceKeyOps = ops;
+		} else {
+			mDestKeyOps = ops;
+		}
 		notifyIntrestOpsUpdate(src);
 	}
+
+	/**
+	 * streams have no selection key, interest ops are kept here and writes are pulled by the tunnel.
+	 */
+	private void updateStreamOps(boolean src, MuxStream stream, boolean add, int opts) {
+		int oldOps = src ? mSourceStreamOps : mDestStreamOps;
+		int newOps = add ? (opts | oldOps) : (oldOps & (~opts));
+		if (src) {
+			mSourceStreamOps = newOps;
+		} else {
+			mDestStreamOps = newOps;
+		}
+
+		if (add && (opts&SelectionKey.OP_WRITE) > 0) {
+			armWriteStall();
+			stream.requestFlush();
+		}
+
+		if (newOps != oldOps) {
+			notifyIntrestOpsUpdate(src);
+		}
+	}
+
+	private void armWriteStall() {
+		if(!mWriteStallTimeout.isPending()) {
+			mLastWriteProgress = TimingWheel.now();
+			mTimingWheel.schedule(mWriteStallTimeout, WRITE_STALL_TIMEOUT);
+		}
+	}
+
+	private void resumeSourceRead() {
+		if (mUpStreamBufferOut.free() > (BUFFER_SIZE >> 1)
+				&& (mSource != null && mSourceKey != null && !hasOps(true, SelectionKey.OP_READ)
+				|| mSourceStream != null && (mSourceStreamOps&SelectionKey.OP_READ) == 0)) {
+			Log.d(getTag(), "out buffer has enough remaining, open src read in.");
+			updateOps(true, true, SelectionKey.OP_READ);
+		}
+	}
+
+	private void resumeDestRead() {
+		if (mDownStreamBufferOut.free() > (BUFFER_SIZE >> 1)
+				&& ((mConnCmd == CONN_CMD_TCP && mDestConnected && mTCPDest != null || (mConnCmd == CONN_CMD_UDP && mUDPDest != null))
+				&& mDestKey != null && !hasOps(false, SelectionKey.OP_READ)
+				|| mDestStream != null && (mDestStreamOps&SelectionKey.OP_READ) == 0)) {
+			Log.d(getTag(), "out buffer has enough remaining, open dest read in.");
+			updateOps(false, true, SelectionKey.OP_READ);
+		}
+	}
+	
+	/**
+	 * memory is under pressure and this channel ranks among the heaviest of its reactor, stop reading both sides, writing goes on.
+	 * reading resumes once the pressure is over or the channel has drained.
+	 */
+	void pauseForMemory() {
+		if (!mAlive || mSourceMemPaused || mDestMemPaused) {
+			return;
+		}
+		
+		if (hasOps(true, SelectionKey.OP_READ) || mSourceStream != null && (mSourceStreamOps&SelectionKey.OP_READ) > 0) {
+			updateOps(true, false, SelectionKey.OP_READ);
+			mSourceMemPaused = true;
+		}
+		
+		if (hasOps(false, SelectionKey.OP_READ) || mDestStream != null && (mDestStreamOps&SelectionKey.OP_READ) > 0) {
+			updateOps(false, false, SelectionKey.OP_READ);
+			mDestMemPaused = true;
+		}
+		
+		if (mSourceMemPaused || mDestMemPaused) {
+			Log.i(getTag(), "memory pressured, pause read with " + getDrainableBytes() + " bytes buffered.");
+			MemoryBudget.onReadPaused();
+			mTimingWheel.schedule(mMemoryTimeout, MEMORY_CHECK_INTERVAL);
+		}
+	}
+	
+	private void resumeMemPaused() {
+		Log.i(getTag(), "resume read paused by memory pressure.");
+		boolean src = mSourceMemPaused;
+		boolean dest = mDestMemPaused;
+		mSourceMemPaused = mDestMemPaused = false;
+		if (src) {
+			updateOps(true, true, SelectionKey.OP_READ);
+		}
+		if (dest) {
+			updateOps(false, true, SelectionKey.OP_READ);
+		}
+		MemoryBudget.onReadResumed();
+	}
 	
-	private boolean hasOps(SelectionKey key,int intres) {
-		return (key != null && key.isValid() && (key.interestOps()&intres) > 0);
+	/**
+	 * @return bytes of data held in the stream buffers that drain without reading more.
+	 * out buffers are written as the peer takes them, and the in buffer behind a non-empty out buffer
+	 * is relayed by the stage on OP_WRITE. an in buffer left behind an empty out buffer is all the stage
+	 * would not take, a parcel not completed, and waits for reading, so it is not counted.
+	 */
+	int getDrainableBytes() {
+		int n = mUpStreamBufferOut.size() + mDownStreamBufferOut.size();
+		if (!mUpStreamBufferOut.isEmpty()) {
+			n += mUpStreamBufferIn.size();
+		}
+		if (!mDownStreamBufferOut.isEmpty()) {
+			n += mDownStreamBufferIn.size();
+		}
+		return n;
+	}
+	
+	private boolean hasOps(boolean src,int intres) {
+		SelectionKey key = src ? mSourceKey : mDestKey;
+		return (key != null && key.isValid() && ((src ? mSourceOps : mDestOps)&intres) > 0);
 	}
 	
 	private boolean checkAlive() {
@@ -431,15 +803,27 @@ public class SSockChannel implements IAcceptor {
 			return false;
 		}
 		
-		if(mDestKey != null && (!mDestKey.isValid() || mDestKey.interestOps() == 0) 
-				&& mDownStreamBufferIn.position() <= 0
-				&& mDownStreamBufferOut.position() <= 0) {
+		if(mDestKey != null && (!mDestKey.isValid() || mDestOps == 0 && !mDestMemPaused) 
+				&& mDownStreamBufferIn.isEmpty()
+				&& mDownStreamBufferOut.isEmpty()) {
 			return false;
 		}
 		
-		if(mSourceKey != null && (!mSourceKey.isValid() || mSourceKey.interestOps() == 0) 
-				&& mUpStreamBufferIn.position() <= 0
-				&& mUpStreamBufferOut.position() <= 0) {
+		if(mSourceKey != null && (!mSourceKey.isValid() || mSourceOps == 0 && !mSourceMemPaused) 
+				&& mUpStreamBufferIn.isEmpty()
+				&& mUpStreamBufferOut.isEmpty()) {
+			return false;
+		}
+
+		if(mDestStream != null && mDestStream.isClosed()
+				&& mDownStreamBufferIn.isEmpty()
+				&& mDownStreamBufferOut.isEmpty()) {
+			return false;
+		}
+
+		if(mSourceStream != null && mSourceStream.isClosed()
+				&& mUpStreamBufferIn.isEmpty()
+				&& mUpStreamBufferOut.isEmpty()) {
 			return false;
 		}
 		
@@ -447,13 +831,29 @@ public class SSockChannel implements IAcceptor {
 	}
 
 	public synchronized void destroy() {
-		Log.d(getTag(), "total>>> src>" + mSrcIn + ",src<" + mSrcOut + ",dest>" + mDestIn + ",dest<" + mDestOut);
+		Log.d(getTag(), "total>>> src>" + mStats.getTotal(TrafficStats.SRC_IN) + ",src<" + mStats.getTotal(TrafficStats.SRC_OUT) 
+				+ ",dest>" + mStats.getTotal(TrafficStats.DEST_IN) + ",dest<" + mStats.getTotal(TrafficStats.DEST_OUT));
+		mStats.setCipherBytes(mCipher.getPlainBytes(), mCipher.getWireBytes());
+		mStats.setResidentBytes(getResidentBytes());
+		if(mAlive && mStats.hasPending()) {
+			publishStats();
+		}
+
 		Log.d(getTag(), "mUpStreamBufferIn "+ mUpStreamBufferIn 
 				+ " mDownStreamBufferIn " + mDownStreamBufferIn 
 				+ " mUpStreamBufferOut " + mUpStreamBufferOut 
 				+ " mDownStreamBufferOut " + mDownStreamBufferOut);
 		
 		mAlive = false;
+		mTimingWheel.cancel(mHandshakeTimeout);
+		mTimingWheel.cancel(mConnectTimeout);
+		mTimingWheel.cancel(mIdleTimeout);
+		mTimingWheel.cancel(mWriteStallTimeout);
+		mTimingWheel.cancel(mStatsTimeout);
+		mTimingWheel.cancel(mMemoryTimeout);
+		mTimingWheel.cancel(mShrinkTimeout);
+		mReactor.removeChannel(this);
+		
 		if (mDestKey != null) {
 			mDestKey.cancel();
 			mDestKey = null;
@@ -464,6 +864,16 @@ public class SSockChannel implements IAcceptor {
 			mSourceKey = null;
 		}
 
+		if (mDestStream != null) {
+			mDestStream.close();
+			mDestStream = null;
+		}
+
+		if (mSourceStream != null) {
+			mSourceStream.close();
+			mSourceStream = null;
+		}
+
 		IOUtils.safeClose(mTCPDest);
 		IOUtils.safeClose(mUDPDest);
 		IOUtils.safeClose(mSource);
@@ -471,46 +881,30 @@ public class SSockChannel implements IAcceptor {
 		mConnId = -1;
 		
 		if (mUpStreamBufferIn != null) {
-			ByteBufferPool.recycle(mUpStreamBufferIn);
+			mUpStreamBufferIn.release();
 			mUpStreamBufferIn = null;
 		}
 		if (mDownStreamBufferIn != null) {
-			ByteBufferPool.recycle(mDownStreamBufferIn);
+			mDownStreamBufferIn.release();
 			mDownStreamBufferIn = null;
 		}
 
 		if (mUpStreamBufferOut != null) {
-			ByteBufferPool.recycle(mUpStreamBufferOut);
+			mUpStreamBufferOut.release();
 			mUpStreamBufferOut = null;
 		}
 
 		if (mDownStreamBufferOut != null) {
-			ByteBufferPool.recycle(mDownStreamBufferOut);
+			mDownStreamBufferOut.release();
 			mDownStreamBufferOut = null;
 		}
 	}
 
-	private int read(SocketChannel socketChannel, ByteBuffer buffer) {
-		try {
-			Log.d(getTag(), "pre read,buffer remain " + buffer.remaining());
-			int r = socketChannel.read(buffer);
-			Log.d(getTag(), "read " + r + " bytes,total " + buffer.position());
-			Log.i(getTag(), "read content: " + StringUtils.toRawString(buffer.array(), buffer.position() - r, r));
-			return r;
-		} catch (Throwable e) {
-			Log.e(getTag(), "read socket channel failed. " + e.getMessage());
-			ExceptionHandler.handleException(e);
-		}
-
-		return -1;
-	}
-	
-	private int read(DatagramChannel socketChannel, ByteBuffer buffer) {
+	private int read(ScatteringByteChannel socketChannel, RingBuffer buffer) {
 		try {
-			Log.d(getTag(), "pre read,buffer remain " + buffer.remaining());
-			int r = socketChannel.read(buffer);
-			Log.d(getTag(), "read " + r + " bytes,total " + buffer.position());
-			Log.i(getTag(), "read content: " + StringUtils.toRawString(buffer.array(), buffer.position() - r, r));
+			Log.d(getTag(), "pre read,buffer remain " + buffer.free());
+			int r = buffer.readFrom(socketChannel);
+			Log.d(getTag(), "read " + r + " bytes,total " + buffer.size());
 			return r;
 		} catch (Throwable e) {
 			Log.e(getTag(), "read socket channel failed. " + e.getMessage());
@@ -520,33 +914,11 @@ public class SSockChannel implements IAcceptor {
 		return -1;
 	}
 
-	private int write(SocketChannel socketChannel, ByteBuffer buffer) {
+	private int write(GatheringByteChannel socketChannel, RingBuffer buffer) {
 		try {
-			buffer.flip();
-			int w = socketChannel.write(buffer);
-
-			Log.d(getTag(), "write " + w + " bytes,remain " + buffer.remaining());
-			Log.i(getTag(), "write content: " + StringUtils.toRawString(buffer.array(), 0, w));
-
-			buffer.compact();
-			return w;
-		} catch (Throwable e) {
-			Log.e(getTag(), "write socket channel failed." + e.getMessage());
-			ExceptionHandler.handleException(e);
-		}
-
-		return -1;
-	}
-	
-	private int write(DatagramChannel socketChannel, ByteBuffer buffer) {
-		try {
-			buffer.flip();
-			int w = socketChannel.write(buffer);
-
-			Log.d(getTag(), "write " + w + " bytes,remain " + buffer.remaining());
-			Log.i(getTag(), "write content: " + StringUtils.toRawString(buffer.array(), 0, w));
-
-			buffer.compact();
+			int w = mBlockWriter != null && mBlockWriter.getRing() == buffer ? mBlockWriter.writeTo(socketChannel)
+					: buffer.writeTo(socketChannel);
+			Log.d(getTag(), "write " + w + " bytes,remain " + buffer.size());
 			return w;
 		} catch (Throwable e) {
 			Log.e(getTag(), "write socket channel failed." + e.getMessage());
@@ -557,11 +929,61 @@ public class SSockChannel implements IAcceptor {
 	}
 	
 	@Override
-	public void onPeriodicCheck(long timeout) {
-		mTimeout += timeout;
-		if(mTimeout >= mTimeoutLimit) {
-			Log.e(getTag(), "timeout, close channel");
-			this.notifySocketClosed(Error.E_S5_SOCKETCHANNEL_ZOMBIE);
+	public void onTimeout(Timeout timeout) {
+		if(!mAlive) {
+			return;
+		}
+		
+		long now = TimingWheel.now();
+		if(timeout == mStatsTimeout) {
+			publishStats();
+			if(mStats.isActive()) {
+				mTimingWheel.schedule(mStatsTimeout, mStatsInterval);
+			}
+		}else if(timeout == mShrinkTimeout) {
+			long idle = now - mLastActive;
+			if(idle >= SHRINK_IDLE) {
+				shrinkBuffers();
+				mTimingWheel.schedule(mShrinkTimeout, SHRINK_IDLE);
+			}else {
+				mTimingWheel.schedule(mShrinkTimeout, SHRINK_IDLE - idle);
+			}
+		}else if(timeout == mMemoryTimeout) {
+			//drained channels go on, so the pressure held by the rest can not stall them all.
+			if(MemoryBudget.isPressured() && getDrainableBytes() >= MEMORY_PAUSE_MIN) {
+				mTimingWheel.schedule(mMemoryTimeout, MEMORY_CHECK_INTERVAL);
+			}else {
+				resumeMemPaused();
+			}
+		}else if(timeout == mIdleTimeout) {
+			long idle = now - mLastActive;
+			if(idle >= mTimeoutLimit) {
+				Log.e(getTag(), "idle timeout, close channel");
+				notifySocketClosed(Error.E_S5_SOCKETCHANNEL_ZOMBIE);
+			}else {
+				mTimingWheel.schedule(mIdleTimeout, mTimeoutLimit - idle);
+			}
+		}else if(timeout == mHandshakeTimeout) {
+			Log.e(getTag(), "handshake timeout, close channel");
+			notifySocketClosed(Error.E_S5_SOCKETCHANNEL_ZOMBIE);
+		}else if(timeout == mConnectTimeout) {
+			if(!mDestConnected) {
+				Log.e(getTag(), "connect timeout, close channel");
+				notifySocketClosed(Error.E_S5_BIND_PROXY_FAILED);
+			}
+		}else if(timeout == mWriteStallTimeout) {
+			if((mUpStreamBufferOut == null || mUpStreamBufferOut.isEmpty())
+					&& (mDownStreamBufferOut == null || mDownStreamBufferOut.isEmpty())) {
+				return;
+			}
+			
+			long stall = now - mLastWriteProgress;
+			if(stall >= WRITE_STALL_TIMEOUT) {
+				Log.e(getTag(), "write stalled, close channel");
+				notifySocketClosed(Error.E_S5_SOCKET_WRITE_FAILED);
+			}else {
+				mTimingWheel.schedule(mWriteStallTimeout, WRITE_STALL_TIMEOUT - stall);
+			}
 		}
 	}
 
@@ -572,10 +994,40 @@ public class SSockChannel implements IAcceptor {
 			return null;
 		}
 		
-		mTimeout = 0;
+		mLastActive = TimingWheel.now();
+		mInEvent = true;
+		try {
+			onSelected(selKey, opts);
+		} finally {
+			mInEvent = false;
+		}
+		
+		if (!mAlive) {
+			return null;
+		}
+		if (MemoryBudget.isPressured()) {
+			mReactor.shedMemory();
+		}
+		applyOps(true);
+		applyOps(false);
+		
+		checkWindows();
+		if(!checkAlive()) {
+			Log.d(getTag(), "socket has died,channel will closed.");
+			notifySocketClosed(Error.E_S5_CHANNEL_DEAD);
+		}
+
+		return null;
+	}
+	
+	private void onSelected(SelectionKey selKey, int opts) {
+		boolean readIn = false;
 
 		if (selKey == mSourceKey) {
-			if (selKey.isValid() && selKey.isReadable()) {
+			if (selKey.isValid() && selKey.isReadable() && mUpStreamBufferIn.free() <= 0) {
+				Log.d(getTag(), "src in buffer is full filled, pause src read.");
+				updateOps(true, false, SelectionKey.OP_READ);
+			} else if (selKey.isValid() && selKey.isReadable()) {
 				Log.d(getTag(), "src recv OP_READ");
 				int r = read(mSource, mUpStreamBufferIn);
 				if (r <= 0) {
@@ -590,30 +1042,21 @@ public class SSockChannel implements IAcceptor {
 					Log.d(getTag(), "read frome src " + r + "bytes");
 					mRetryTimesWhileReadNull = 0;
 					onSrcIn(r);
+					readIn = true;
 				}
 			}
 
 			if (selKey.isValid() && selKey.isWritable()) {
 				Log.d(getTag(), "src recv OP_WRITE");
-				if (mDownStreamBufferOut != null && mDownStreamBufferOut.position() > 0) {
-					int w = write(mSource, mDownStreamBufferOut);
-
-					if (w > 0) {
-						if (mDownStreamBufferOut.remaining() > (BUFFER_SIZE >> 1)
-								&& (mConnCmd == CONN_CMD_TCP && mDestConnected && mTCPDest != null || (mConnCmd == CONN_CMD_UDP && mUDPDest != null)) 
-								&& mDestKey != null && !hasOps(mDestKey, SelectionKey.OP_READ)) {
-							Log.d(getTag(), "out buffer has enough remaining, open dest read in.");
-							updateOps(false, true, SelectionKey.OP_READ);
-						}
-
-						onSrcOut(w);
-					}else {
+				if (mDownStreamBufferOut != null && !mDownStreamBufferOut.isEmpty()) {
+					int w = flushOut(true);
+					if (w <= 0) {
 						Log.d(getTag(), "write to src failed," + w + " pause src write.");
 						updateOps(true, false, SelectionKey.OP_WRITE);
 					}
 				}
 
-				if (mDownStreamBufferOut == null || mDownStreamBufferOut.position() <= 0) {
+				if (mDownStreamBufferOut == null || mDownStreamBufferOut.isEmpty()) {
 					updateOps(true, false, SelectionKey.OP_WRITE);
 				}
 			}
@@ -621,6 +1064,10 @@ public class SSockChannel implements IAcceptor {
 			if(selKey.isValid()) {				
 				notifySourceOps(opts);
 			}
+			
+			if (readIn) {
+				pump(true);
+			}
 
 		} else if (selKey == mDestKey) {
 
@@ -630,22 +1077,26 @@ public class SSockChannel implements IAcceptor {
 					if(mTCPDest != null && !mTCPDest.finishConnect()) {
 						Log.e(getTag(), "finish connect failed.");
 						notifySocketClosed(Error.E_S5_BIND_PROXY_FAILED);
-						return null;
+						return;
 					}else {
 						updateOps(false, false, SelectionKey.OP_CONNECT);
 						updateOps(false, true, SelectionKey.OP_READ|SelectionKey.OP_WRITE);
 						mDestConnected = true;
+						mTimingWheel.cancel(mConnectTimeout);
 						Log.d(getTag(), "bind proxy success!");
 					}
 				} catch (Throwable e) {
 					ExceptionHandler.handleException(e);
 					Log.e(getTag(), "conn to proxy failed");
 					notifySocketClosed(Error.E_S5_BIND_PROXY_FAILED);
-					return null;
+					return;
 				}
 			}
 
-			if (selKey.isValid() && selKey.isReadable()) {
+			if (selKey.isValid() && selKey.isReadable() && mDownStreamBufferIn.free() <= 0) {
+				Log.d(getTag(), "dest in buffer is full filled, pause dest read.");
+				updateOps(false, false, SelectionKey.OP_READ);
+			} else if (selKey.isValid() && selKey.isReadable()) {
 				Log.d(getTag(), "recv dest OP_READ");
 				int r = 0;
 				if(mConnCmd == CONN_CMD_TCP && mTCPDest != null) {
@@ -665,33 +1116,21 @@ public class SSockChannel implements IAcceptor {
 					Log.d(getTag(), "read frome dest " + r + "bytes");
 					mRetryTimesWhileReadNull = 0;
 					onDestIn(r);
+					readIn = true;
 				}
 			}
 
 			if (selKey.isValid() && selKey.isWritable()) {// dest channel is writable now, lets check if anything need be relay
 				Log.d(getTag(), "recv dest OP_WRITE");
-				if (mUpStreamBufferOut != null && mUpStreamBufferOut.position() > 0) {
-					int w = 0;
-					if(mConnCmd == CONN_CMD_TCP && mTCPDest != null) {
-						w = write(mTCPDest, mUpStreamBufferOut);
-					}else if(mConnCmd == CONN_CMD_UDP && mUDPDest != null){
-						w = write(mUDPDest, mUpStreamBufferOut);
-					}
-					if (w > 0) {
-						if (mUpStreamBufferOut.remaining() > (BUFFER_SIZE >> 1) 
-								&& mSource != null && mSourceKey != null && !hasOps(mSourceKey, SelectionKey.OP_READ)) {
-							Log.d(getTag(), "out buffer has enough remaining, open src read in.");
-							updateOps(true, true, SelectionKey.OP_READ);
-						}
-
-						onDestOut(w);
-					}else {
+				if (mUpStreamBufferOut != null && !mUpStreamBufferOut.isEmpty()) {
+					int w = flushOut(false);
+					if (w <= 0) {
 						Log.d(getTag(), "write to dest failed," + w + " pause dest write.");
 						updateOps(false, false, SelectionKey.OP_WRITE);
 					}
 				}
 
-				if (mUpStreamBufferOut == null || mUpStreamBufferOut.position() <= 0) {// all data have been send,shutdown write event
+				if (mUpStreamBufferOut == null || mUpStreamBufferOut.isEmpty()) {// all data have been send,shutdown write event
 					updateOps(false, false, SelectionKey.OP_WRITE);
 				}
 			}
@@ -699,41 +1138,257 @@ public class SSockChannel implements IAcceptor {
 			if(selKey.isValid()) {				
 				notifyDestOps(opts);
 			}
+			
+			if (readIn) {
+				pump(false);
+			}
+		}
+	}
+
+	/**
+	 * data read from src, or dest, has been handed to the stage. write what it relayed at once,
+	 * then go on reading and relaying while the socket gives data, within the budget of one event.
+	 */
+	private void pump(boolean src) {
+		long deadline = System.nanoTime() + EVENT_TIME_BUDGET;
+		int moved = 0;
+		while (mAlive) {
+			//relayed to the other side, which may be a stream flushed by its tunnel.
+			RingBuffer in = src ? mUpStreamBufferIn : mDownStreamBufferIn;
+			RingBuffer out = src ? mUpStreamBufferOut : mDownStreamBufferOut;
+			if ((src ? mDestStream : mSourceStream) == null) {
+				int w = flushOut(!src);
+				if (out.isEmpty() && in.isEmpty()) {
+					updateOps(!src, false, SelectionKey.OP_WRITE);
+				} else if (w <= 0) {
+					//the other side is slow, rest goes on OP_WRITE.
+					break;
+				}
+			}
+			
+			int pending = in.size();
+			if (moved >= EVENT_BYTE_BUDGET || System.nanoTime() >= deadline) {
+				if (pending > 0) {
+					//the stage relays the rest on OP_WRITE of the other side, see S5TransStage.
+					updateOps(!src, true, SelectionKey.OP_WRITE);
+				}
+				break;
+			}
+			
+			if (pending <= 0) {
+				int r = readIn(src);
+				if (r <= 0) {
+					//drained, or closed which the next select tells.
+					break;
+				}
+				moved += r;
+			}
+			
+			if (src) {
+				notifySourceOps(SelectionKey.OP_READ);
+			} else {
+				notifyDestOps(SelectionKey.OP_READ);
+			}
+			
+			if (pending > 0 && (!mAlive || in.size() >= pending)) {
+				//the stage takes no more for now.
+				break;
+			}
+		}
+	}
+	
+	private int readIn(boolean src) {
+		RingBuffer in = src ? mUpStreamBufferIn : mDownStreamBufferIn;
+		if (!hasOps(src, SelectionKey.OP_READ) || in.free() <= 0) {
+			return 0;
+		}
+		
+		int r = 0;
+		if (src) {
+			r = read(mSource, in);
+		} else if (mConnCmd == CONN_CMD_TCP && mTCPDest != null) {
+			r = read(mTCPDest, in);
+		} else if (mConnCmd == CONN_CMD_UDP && mUDPDest != null) {
+			r = read(mUDPDest, in);
+		}
+		
+		if (r > 0) {
+			if (src) {
+				onSrcIn(r);
+			} else {
+				onDestIn(r);
+			}
+		}
+		
+		return r;
+	}
+	
+	/**
+	 * write the out buffer to src, or dest, socket.
+	 * @return bytes written, 0 if nothing written, -1 if failed.
+	 */
+	private int flushOut(boolean src) {
+		RingBuffer out = src ? mDownStreamBufferOut : mUpStreamBufferOut;
+		if (out == null || out.isEmpty()) {
+			return 0;
 		}
 		
+		int w = 0;
+		if (src) {
+			if (mSource != null) {
+				w = write(mSource, out);
+			}
+		} else if (mConnCmd == CONN_CMD_TCP && mDestConnected && mTCPDest != null) {
+			w = write(mTCPDest, out);
+		} else if (mConnCmd == CONN_CMD_UDP && mUDPDest != null) {
+			w = write(mUDPDest, out);
+		}
+		
+		if (w > 0) {
+			mLastWriteProgress = TimingWheel.now();
+			if (src) {
+				resumeDestRead();
+				onSrcOut(w);
+			} else {
+				resumeSourceRead();
+				onDestOut(w);
+			}
+		}
+		
+		return w;
+	}
+
+	/**
+	 * data of stream has been put into the in buffer.
+	 * @param src true if the stream is source.
+	 * @param len
+	 */
+	void onStreamRead(boolean src, int len) {
+		if (!mAlive) {
+			return;
+		}
+
+		mLastActive = TimingWheel.now();
+		if (src) {
+			onSrcIn(len);
+			notifySourceOps(SelectionKey.OP_READ);
+		} else {
+			onDestIn(len);
+			notifyDestOps(SelectionKey.OP_READ);
+		}
+
+		afterStreamEvent();
+	}
+
+	/**
+	 * data in out buffer has been taken by the tunnel.
+	 * @param src true if the stream is source.
+	 * @param len
+	 */
+	void onStreamWritten(boolean src, int len) {
+		if (!mAlive) {
+			return;
+		}
+
+		mLastActive = mLastWriteProgress = TimingWheel.now();
+		if (src) {
+			resumeDestRead();
+			onSrcOut(len);
+			if (mDownStreamBufferOut.isEmpty()) {
+				updateOps(true, false, SelectionKey.OP_WRITE);
+			}
+			notifySourceOps(SelectionKey.OP_WRITE);
+		} else {
+			resumeSourceRead();
+			onDestOut(len);
+			if (mUpStreamBufferOut.isEmpty()) {
+				updateOps(false, false, SelectionKey.OP_WRITE);
+			}
+			notifyDestOps(SelectionKey.OP_WRITE);
+		}
+
+		afterStreamEvent();
+	}
+
+	/**
+	 * stream closed by peer or tunnel broken.
+	 * @param src
+	 */
+	void onStreamClosed(boolean src) {
+		if (!mAlive) {
+			return;
+		}
+
+		Log.d(getTag(), (src?"src":"dest") + " stream closed.");
+		afterStreamEvent();
+	}
+
+	private void afterStreamEvent() {
+		if (MemoryBudget.isPressured()) {
+			mReactor.shedMemory();
+		}
+		checkWindows();
 		if(!checkAlive()) {
-			Log.d(getTag(), "socket has died,channel will closed.");
+			Log.d(getTag(), "stream has died,channel will closed.");
 			notifySocketClosed(Error.E_S5_CHANNEL_DEAD);
 		}
+	}
 
-		return null;
+	private void checkWindows() {
+		if (mSourceStream != null) {
+			mSourceStream.checkWindow();
+		}
+
+		if (mDestStream != null) {
+			mDestStream.checkWindow();
+		}
 	}
 
 	private void onSrcIn(int len) {
-		mSrcIn += len;
-		if(mTrafficListener != null) {
-			mTrafficListener.onSrcIn(len,mSrcIn);
-		}
+		onTraffic(TrafficStats.SRC_IN, len);
 	}
 
 	private void onSrcOut(int len) {
-		mSrcOut += len;
-		if(mTrafficListener != null) {
-			mTrafficListener.onSrcOut(len,mSrcOut);
-		}
+		onTraffic(TrafficStats.SRC_OUT, len);
 	}
 
 	private void onDestIn(int len) {
-		mDestIn += len;
-		if(mTrafficListener != null) {
-			mTrafficListener.onDestIn(len,mDestIn);
-		}
+		onTraffic(TrafficStats.DEST_IN, len);
 	}
 
 	private void onDestOut(int len) {
-		mDestOut += len;
-		if(mTrafficListener != null) {
-			mTrafficListener.onDestOut(len,mDestOut);
+		onTraffic(TrafficStats.DEST_OUT, len);
+	}
+	
+	private void onTraffic(int dir,int len) {
+		mStats.add(dir, len);
+		if(!mStatsTimeout.isPending()) {
+			mTimingWheel.schedule(mStatsTimeout, mStatsInterval);
+		}
+	}
+	
+	private void shrinkBuffers() {
+		int freed = mUpStreamBufferIn.shrink() + mUpStreamBufferOut.shrink()
+				+ mDownStreamBufferIn.shrink() + mDownStreamBufferOut.shrink();
+		if(freed > 0) {
+			Log.d(getTag(), "idle, " + freed + " bytes of buffer given back, " + getResidentBytes() + " resident.");
+			publishStats();
+		}
+	}
+	
+	/**
+	 * @return bytes of buffer the channel holds now.
+	 */
+	public int getResidentBytes() {
+		return mUpStreamBufferIn.resident() + mUpStreamBufferOut.resident()
+				+ mDownStreamBufferIn.resident() + mDownStreamBufferOut.resident();
+	}
+	
+	private void publishStats() {
+		mStats.setCipherBytes(mCipher.getPlainBytes(), mCipher.getWireBytes());
+		mStats.setResidentBytes(getResidentBytes());
+		if(mStats.snapshot(TimingWheel.now(), mStatsInterval) && mTrafficListener != null) {
+			mTrafficListener.onTraffic(mStats);
 		}
 	}
 
@@ -764,14 +1419,14 @@ public class SSockChannel implements IAcceptor {
 	private void notifyIntrestOpsUpdate(boolean src) {
 		
 		if(mAlive && mListener != null) {
-			if(src && mSourceKey != null) {
-				int ops = mSourceKey.interestOps();
-				Log.d(getTag(), "notifyIntrestOpsUpdate source " + ops);
-				mListener.onSrcOpsUpdate(ops);
+			if(src && mSourceStream != null) {
+				mListener.onSrcOpsUpdate(mSourceStreamOps);
+			}else if(!src && mDestStream != null) {
+				mListener.onDestOpsUpdate(mDestStreamOps);
+			}else if(src && mSourceKey != null) {
+				mListener.onSrcOpsUpdate(mSourceKeyOps);
 			}else if(!src && mDestKey != null){	
-				int ops = mDestKey.interestOps();
-				Log.d(getTag(), "notifyIntrestOpsUpdate dest " + ops);
-				mListener.onDestOpsUpdate(ops);
+				mListener.onDestOpsUpdate(mDestKeyOps);
 			}
 		}
 	}
@@ -792,14 +1447,11 @@ public class SSockChannel implements IAcceptor {
 	}
 
 	public static interface ITrafficEvent {
-		void onSrcIn(int len,long total);
-
-		void onSrcOut(int len,long total);
-
-		void onDestIn(int len,long total);
-
-		void onDestOut(int len,long total);
-		
+		/**
+		 * periodic snapshot of traffic, only sent while something changed.
+		 * @param stats valid during the call only.
+		 */
+		void onTraffic(TrafficStats stats);
 	}
 
 }
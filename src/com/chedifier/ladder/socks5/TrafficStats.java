@@ -0,0 +1,176 @@
+package com.chedifier.ladder.socks5;
+
+import com.chedifier.ladder.iface.IProxyListener.SPEEDTYPE;
+
+/**
+ * byte counters and EWMA speed of one connection, kept in place and read as periodic snapshots.
+ * only touched on the reactor thread of the connection.
+ */
+public class TrafficStats {
+
+	public static final int SRC_IN 		= 0;
+	public static final int SRC_OUT 	= 1;
+	public static final int DEST_IN 	= 2;
+	public static final int DEST_OUT 	= 3;
+	public static final int DIRECTIONS 	= 4;
+
+	//time constant of speed smoothing, in milliseconds.
+	private static final double TAU = 2000d;
+
+	private final long[] mTotal = new long[DIRECTIONS];
+	private final long[] mLast = new long[DIRECTIONS];
+	private final double[] mRate = new double[DIRECTIONS];
+	private final int[] mSpeed = new int[DIRECTIONS];
+	private final boolean[] mChanged = new boolean[DIRECTIONS];
+	private final boolean[] mSpeedChanged = new boolean[DIRECTIONS];
+	private long mLastTime;
+	private long mPlain;
+	private long mWire;
+	private long mLastWire;
+	private boolean mWireChanged;
+	private long mResident;
+	private long mLastResident;
+	private boolean mResidentChanged;
+
+	public TrafficStats(long now) {
+		mLastTime = now;
+	}
+
+	public void add(int dir,int len) {
+		mTotal[dir] += len;
+	}
+
+	public long getTotal(int dir) {
+		return mTotal[dir];
+	}
+
+	/**
+	 * @param dir
+	 * @return smoothed speed in bytes per second at last snapshot.
+	 */
+	public int getSpeed(int dir) {
+		return mSpeed[dir];
+	}
+
+	public boolean isTotalChanged(int dir) {
+		return mChanged[dir];
+	}
+
+	public boolean isSpeedChanged(int dir) {
+		return mSpeedChanged[dir];
+	}
+
+	/**
+	 * bytes of relayed data encrypted and what they took on wire, set before snapshot.
+	 */
+	public void setCipherBytes(long plain,long wire) {
+		mPlain = plain;
+		mWire = wire;
+	}
+
+	public long getPlainBytes() {
+		return mPlain;
+	}
+
+	public long getWireBytes() {
+		return mWire;
+	}
+
+	public boolean isWireChanged() {
+		return mWireChanged;
+	}
+
+	/**
+	 * bytes of buffer the connection holds, set before snapshot.
+	 */
+	public void setResidentBytes(long resident) {
+		mResident = resident;
+	}
+
+	public long getResidentBytes() {
+		return mResident;
+	}
+
+	public boolean isResidentChanged() {
+		return mResidentChanged;
+	}
+
+	public boolean hasPending() {
+		for(int i=0;i<DIRECTIONS;i++) {
+			if(mTotal[i] != mLast[i]) {
+				return true;
+			}
+		}
+
+		return mWire != mLastWire || mResident != mLastResident;
+	}
+
+	/**
+	 * fold the bytes since last snapshot into the speed.
+	 * @param now
+	 * @param interval milliseconds between snapshots, the time since last one is capped to it once idle,
+	 * snapshots stop while idle and the gap is not time the bytes took.
+	 * @return true if any counter or speed changed, false means nothing worth publishing.
+	 */
+	public boolean snapshot(long now,long interval) {
+		long elapsed = now - mLastTime;
+		if(!isActive() && interval > 0 && elapsed > interval) {
+			elapsed = interval;
+		}
+		if(elapsed <= 0) {
+			elapsed = 1;
+		}
+		mLastTime = now;
+
+		double alpha = 1d - Math.exp(-elapsed/TAU);
+		boolean changed = false;
+		for(int i=0;i<DIRECTIONS;i++) {
+			long delta = mTotal[i] - mLast[i];
+			mLast[i] = mTotal[i];
+			mChanged[i] = delta > 0;
+
+			double inst = delta*1000d/elapsed;
+			mRate[i] += alpha*(inst - mRate[i]);
+			int speed = mRate[i] < 1d?0:(int)mRate[i];
+			if(speed == 0) {
+				mRate[i] = 0d;
+			}
+			mSpeedChanged[i] = speed != mSpeed[i];
+			mSpeed[i] = speed;
+
+			changed |= mChanged[i] || mSpeedChanged[i];
+		}
+
+		mWireChanged = mWire != mLastWire;
+		mLastWire = mWire;
+		changed |= mWireChanged;
+
+		mResidentChanged = mResident != mLastResident;
+		mLastResident = mResident;
+		changed |= mResidentChanged;
+
+		return changed;
+	}
+
+	/**
+	 * @return true if speed of some direction not yet decayed to zero.
+	 */
+	public boolean isActive() {
+		for(int i=0;i<DIRECTIONS;i++) {
+			if(mSpeed[i] > 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public static byte toSpeedType(int dir) {
+		switch(dir) {
+			case SRC_IN: return SPEEDTYPE.SRC_IN;
+			case SRC_OUT: return SPEEDTYPE.SRC_OUT;
+			case DEST_IN: return SPEEDTYPE.DEST_IN;
+			default: return SPEEDTYPE.DEST_OUT;
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.chedifier.ladder.socks5;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.chedifier.ladder.base.ExceptionHandler;
+import com.chedifier.ladder.base.IOUtils;
+import com.chedifier.ladder.base.Log;
+import com.chedifier.ladder.base.TimingWheel;
+import com.chedifier.ladder.base.TimingWheel.ITimeoutTask;
+import com.chedifier.ladder.base.TimingWheel.Timeout;
+import com.chedifier.ladder.iface.Error;
+import com.chedifier.ladder.socks5.AcceptorWrapper.IAcceptor;
+
+/**
+ * local side, keeps connections to server connected ahead of clients, owned by one reactor.
+ * idle connections are watched for being closed by server and dropped before the server's idle timeout would,
+ * a take while pool is empty waits for the next connection established.
+ * waiters are always called back on a later loop of the reactor, never inside {@link #take(IWaiter)}.
+ * only touched on the reactor thread.
+ */
+public class TunnelPool implements ITimeoutTask {
+
+	private final String TAG;
+
+	private static final long MAINTAIN_INTERVAL = 1000L;
+	private static final long CONNECT_TIMEOUT = 10*1000L;
+	public static final long DEFAULT_MAX_IDLE = 8*1000L;
+
+	private static final AtomicLong sHits = new AtomicLong(0L);
+	private static final AtomicLong sMisses = new AtomicLong(0L);
+	private static final AtomicLong sWaitTotal = new AtomicLong(0L);
+	private static final AtomicLong sWaitMax = new AtomicLong(0L);
+	private static final AtomicLong sStale = new AtomicLong(0L);
+	private static final AtomicLong sFailed = new AtomicLong(0L);
+
+	private final Reactor mReactor;
+	private final InetSocketAddress mServer;
+	private final int mMin;
+	private final int mMax;
+	private final long mMaxIdle;
+
+	private final ArrayDeque<Conn> mIdle = new ArrayDeque<Conn>();
+	private final List<Conn> mConnecting = new ArrayList<Conn>();
+	private final ArrayDeque<Request> mWaiters = new ArrayDeque<Request>();
+	private final Timeout mMaintainTimeout = new Timeout(this);
+	private final ByteBuffer mProbe = ByteBuffer.allocate(64);
+
+	/**
+	 * @param reactor
+	 * @param server
+	 * @param min idle connections kept ready
+	 * @param max idle connections at most
+	 * @param maxIdle milliseconds an idle connection is trusted
+	 */
+	public TunnelPool(Reactor reactor,InetSocketAddress server,int min,int max,long maxIdle) {
+		TAG = "TunnelPool_" + reactor.getId();
+		mReactor = reactor;
+		mServer = server;
+		mMin = min < 0?0:min;
+		mMax = max < mMin?mMin:max;
+		mMaxIdle = maxIdle > 0?maxIdle:DEFAULT_MAX_IDLE;
+	}
+
+	/**
+	 * start warming, may be called from any thread.
+	 */
+	public void start() {
+		mReactor.post(new Runnable() {
+
+			@Override
+			public void run() {
+				maintain();
+			}
+		});
+	}
+
+	/**
+	 * take a connected socket.
+	 * @param waiter called on next loop if an idle one is ready, otherwise after next connection established.
+	 * @return the pending request to cancel.
+	 */
+	public Request take(IWaiter waiter) {
+		long now = TimingWheel.now();
+		Request req = new Request(waiter, now);
+		Conn c;
+		while((c = mIdle.pollFirst()) != null) {
+			if(c.mSocket.isConnected() && now - c.mSince < mMaxIdle) {
+				sHits.incrementAndGet();
+				serve(req, c);
+				replenish();
+				return req;
+			}
+			discard(c);
+		}
+
+		sMisses.incrementAndGet();
+		mWaiters.offer(req);
+		replenish();
+		return req;
+	}
+
+	@Override
+	public void onTimeout(Timeout timeout) {
+		maintain();
+	}
+
+	private void maintain() {
+		long now = TimingWheel.now();
+		Iterator<Conn> itr = mIdle.iterator();
+		while(itr.hasNext()) {
+			Conn c = itr.next();
+			if(now - c.mSince >= mMaxIdle) {
+				itr.remove();
+				discard(c);
+			}
+		}
+
+		itr = mConnecting.iterator();
+		while(itr.hasNext()) {
+			Conn c = itr.next();
+			if(now - c.mSince >= CONNECT_TIMEOUT) {
+				itr.remove();
+				Log.e(TAG, "connect to server timeout.");
+				onConnectFailed(c);
+			}
+		}
+
+		replenish();
+		mReactor.getTimingWheel().schedule(mMaintainTimeout, MAINTAIN_INTERVAL);
+	}
+
+	/**
+	 * open connections for every waiter, and keep min warm ones without exceeding max.
+	 */
+	private void replenish() {
+		int waiters = pendingWaiters();
+		int warm = mIdle.size() + Math.max(mConnecting.size() - waiters, 0);
+		int need = Math.max(waiters - mConnecting.size(), 0);
+		if(warm < mMin) {
+			need += mMin - warm;
+		}
+
+		for(int i=0;i<need;i++) {
+			if(!open()) {
+				break;
+			}
+		}
+	}
+
+	private int pendingWaiters() {
+		int n = 0;
+		for(Request r:mWaiters) {
+			if(!r.mCanceled) {
+				++n;
+			}
+		}
+
+		return n;
+	}
+
+	private boolean open() {
+		SocketChannel sc = null;
+		try {
+			sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			Conn c = new Conn(sc);
+			if(sc.connect(mServer)) {
+				c.mKey = sc.register(mReactor.getSelector(), 0, c);
+				onConnected(c);
+			}else {
+				c.mKey = sc.register(mReactor.getSelector(), SelectionKey.OP_CONNECT, c);
+				mConnecting.add(c);
+			}
+			return true;
+		} catch (Throwable t) {
+			Log.e(TAG, "open connection to server failed. " + t.getMessage());
+			ExceptionHandler.handleException(t);
+			IOUtils.safeClose(sc);
+			sFailed.incrementAndGet();
+			failWaiter();
+		}
+
+		return false;
+	}
+
+	private void onConnected(Conn c) {
+		c.mSince = TimingWheel.now();
+		giveBack(c);
+	}
+
+	/**
+	 * hand c to the next waiter, or keep it idle.
+	 */
+	private void giveBack(Conn c) {
+		Request req = pollWaiter();
+		if(req != null) {
+			serve(req, c);
+			return;
+		}
+
+		if(mIdle.size() >= mMax || TimingWheel.now() - c.mSince >= mMaxIdle) {
+			discard(c);
+			return;
+		}
+
+		c.mKey.interestOps(SelectionKey.OP_READ);
+		mIdle.offerLast(c);
+	}
+
+	private void onConnectFailed(Conn c) {
+		discard(c);
+		sFailed.incrementAndGet();
+		failWaiter();
+	}
+
+	private void failWaiter() {
+		Request req = pollWaiter();
+		if(req != null) {
+			serve(req, null);
+		}
+	}
+
+	private Request pollWaiter() {
+		Request req;
+		while((req = mWaiters.pollFirst()) != null) {
+			if(!req.mCanceled) {
+				return req;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * call the waiter back on next loop with c, or null for failure, so it never runs inside take or a pool callback of its caller.
+	 * c is kept from others meanwhile, and given back if the request is canceled before.
+	 */
+	private void serve(final Request req,final Conn c) {
+		if(c != null) {
+			c.mKey.interestOps(0);
+		}
+
+		mReactor.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if(req.mCanceled) {
+					if(c != null) {
+						giveBack(c);
+					}
+					return;
+				}
+
+				if(c == null) {
+					req.mWaiter.onTunnel(null);
+					return;
+				}
+
+				recordWait(TimingWheel.now() - req.mTime);
+				req.mWaiter.onTunnel(handOver(c));
+			}
+		});
+	}
+
+	/**
+	 * the key is kept, the new owner registers the same channel and gets it back with its own attachment.
+	 */
+	private SocketChannel handOver(Conn c) {
+		c.mKey.interestOps(0);
+		c.mKey.attach(null);
+		return c.mSocket;
+	}
+
+	private void discard(Conn c) {
+		if(c.mKey != null) {
+			c.mKey.cancel();
+		}
+		IOUtils.safeClose(c.mSocket);
+	}
+
+	private static void recordWait(long wait) {
+		sWaitTotal.addAndGet(wait);
+		long max;
+		while(wait > (max = sWaitMax.get()) && !sWaitMax.compareAndSet(max, wait));
+	}
+
+	public static String dumpInfo() {
+		long hits = sHits.get();
+		long total = hits + sMisses.get();
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("tunnel pool: takes ").append(total)
+		.append(" , hit rate ").append(total > 0?hits*100/total:0).append("%")
+		.append(" , avg wait ").append(total > 0?sWaitTotal.get()/total:0).append("ms")
+		.append(" , max wait ").append(sWaitMax.get()).append("ms")
+		.append(" , stale ").append(sStale.get())
+		.append(" , failed ").append(sFailed.get());
+		return sb.toString();
+	}
+
+	private class Conn implements IAcceptor{
+		private final SocketChannel mSocket;
+		private SelectionKey mKey;
+		private long mSince;
+
+		private Conn(SocketChannel sc) {
+			mSocket = sc;
+			mSince = TimingWheel.now();
+		}
+
+		@Override
+		public Error accept(SelectionKey selKey, int opts) {
+			if(!selKey.isValid()) {
+				return null;
+			}
+
+			if(selKey.isConnectable()) {
+				try {
+					//false is still pending, it stays connecting with OP_CONNECT registered.
+					if(mSocket.finishConnect()) {
+						mConnecting.remove(this);
+						onConnected(this);
+					}
+				} catch (IOException e) {
+					Log.e(TAG, "connect to server failed. " + e.getMessage());
+					mConnecting.remove(this);
+					onConnectFailed(this);
+				}
+			}else if(selKey.isReadable()) {
+				//server says nothing before the greeting, anything readable means closed or broken.
+				int r;
+				try {
+					mProbe.clear();
+					r = mSocket.read(mProbe);
+				} catch (IOException e) {
+					r = -1;
+				}
+				Log.d(TAG, "idle connection became readable " + r + ", drop it.");
+				mIdle.remove(this);
+				discard(this);
+				sStale.incrementAndGet();
+				replenish();
+			}
+
+			return null;
+		}
+	}
+
+	public static final class Request{
+		private final IWaiter mWaiter;
+		private final long mTime;
+		private boolean mCanceled = false;
+
+		private Request(IWaiter waiter,long time) {
+			mWaiter = waiter;
+			mTime = time;
+		}
+
+		public void cancel() {
+			mCanceled = true;
+		}
+	}
+
+	public static interface IWaiter{
+		/**
+		 * @param socket connected socket, or null if failed to connect server.
+		 */
+		void onTunnel(SocketChannel socket);
+	}
+}